@@ -0,0 +1,186 @@
+package ru.axu.signer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+public class CliOptions {
+	public static final String USAGE =
+		"Использование: java -jar axusigner.jar --key <файл ключа> (--password-file <файл> | --password-env <переменная>) [параметры]\n" +
+		"  --in <директория>          директория исходных файлов (по умолчанию \"in\")\n" +
+		"  --out <директория>         директория подписанных файлов (по умолчанию \"out\")\n" +
+		"  --key <файл>               файл ключа ПЭП (.askey)\n" +
+		"  --password-file <файл>     файл, первая строка которого содержит пароль ключа\n" +
+		"  --password-env <перем.>    переменная окружения, содержащая пароль ключа\n" +
+		"  --config <файл>            файл конфигурации (по умолчанию \"axusigner.ini\")\n" +
+		"  --threads <число>          количество потоков подписания (по умолчанию из файла конфигурации)\n" +
+		"  --force                    подписать заново все файлы, включая не изменившиеся с прошлого запуска\n" +
+		"  --quarantine <директория>  директория для исходных файлов, которые не удалось подписать (по умолчанию из файла конфигурации)\n" +
+		"  --watch                    не завершать работу, а подписывать новые файлы по мере их появления\n" +
+		"  --help                     показать эту справку";
+
+	private File inPath;
+	private File outPath;
+	private File keyFile;
+	private File passwordFile;
+	private String passwordEnv;
+	private File configFile;
+	private int threads;
+	private boolean force;
+	private File quarantinePath;
+	private boolean watch;
+	private boolean help;
+
+	public CliOptions() {
+		inPath = new File("in");
+		outPath = new File("out");
+		keyFile = null;
+		passwordFile = null;
+		passwordEnv = null;
+		configFile = new File("axusigner.ini");
+		threads = 0;
+		force = false;
+		quarantinePath = null;
+		watch = false;
+		help = false;
+	}
+
+	public static CliOptions parse(String[] args) throws GeneralException {
+		CliOptions opts = new CliOptions();
+
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+
+			if (arg.equals("--help") || arg.equals("-h")) {
+				opts.help = true;
+				continue;
+			}
+
+			if (arg.equals("--force")) {
+				opts.force = true;
+				continue;
+			}
+
+			if (arg.equals("--watch")) {
+				opts.watch = true;
+				continue;
+			}
+
+			if (i + 1 >= args.length) {
+				throw new GeneralException("Missing value for command line option \"" + arg + "\"!");
+			}
+
+			String val = args[++i];
+
+			switch (arg) {
+				case "--in":
+					opts.inPath = new File(val);
+					break;
+				case "--out":
+					opts.outPath = new File(val);
+					break;
+				case "--key":
+					opts.keyFile = new File(val);
+					break;
+				case "--password-file":
+					opts.passwordFile = new File(val);
+					break;
+				case "--password-env":
+					opts.passwordEnv = val;
+					break;
+				case "--config":
+					opts.configFile = new File(val);
+					break;
+				case "--threads":
+					opts.threads = MiscUtils.parseIntDef(val, -1);
+					if (opts.threads < 1) {
+						throw new GeneralException("Invalid value for command line option \"" + arg + "\"!");
+					}
+					break;
+				case "--quarantine":
+					opts.quarantinePath = new File(val);
+					break;
+				default:
+					throw new GeneralException("Unknown command line option \"" + arg + "\"!");
+			}
+		}
+
+		if (opts.help) {
+			return opts;
+		}
+
+		if (opts.keyFile == null) {
+			throw new GeneralException("Key file must be specified with \"--key\" option!");
+		}
+
+		if ((opts.passwordFile == null) == (opts.passwordEnv == null)) {
+			throw new GeneralException("Exactly one of \"--password-file\" or \"--password-env\" options must be specified!");
+		}
+
+		return opts;
+	}
+
+	public String readPassword() throws GeneralException {
+		if (passwordEnv != null) {
+			String passw = System.getenv(passwordEnv);
+
+			if (passw == null) {
+				throw new GeneralException("Environment variable \"" + passwordEnv + "\" is not set!");
+			}
+
+			return passw;
+		}
+
+		List<String> lines;
+
+		try {
+			lines = Files.readAllLines(passwordFile.toPath(), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new GeneralException("Can't read password file \"" + passwordFile.getAbsolutePath() + "\"!", e);
+		}
+
+		if (lines.isEmpty()) {
+			throw new GeneralException("Password file \"" + passwordFile.getAbsolutePath() + "\" is empty!");
+		}
+
+		return lines.get(0);
+	}
+
+	public File getInPath() {
+		return inPath;
+	}
+
+	public File getOutPath() {
+		return outPath;
+	}
+
+	public File getKeyFile() {
+		return keyFile;
+	}
+
+	public File getConfigFile() {
+		return configFile;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public boolean getForce() {
+		return force;
+	}
+
+	public File getQuarantinePath() {
+		return quarantinePath;
+	}
+
+	public boolean getWatch() {
+		return watch;
+	}
+
+	public boolean getHelp() {
+		return help;
+	}
+}
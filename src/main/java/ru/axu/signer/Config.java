@@ -3,6 +3,8 @@ package ru.axu.signer;
 import java.awt.*;
 import java.io.File;
 import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.Properties;
 
@@ -32,6 +34,39 @@ public class Config {
 	private int copyrightFontSize;
 	private Color copyrightFontColor;
 
+	private int signThreads;
+
+	private int pipelineReaders;
+	private int pipelineWriters;
+	private int pipelineQueueSize;
+	private int pipelineBufferMaxSize;
+	private int pipelineBufferPoolMaxSize;
+
+	private boolean stateEnable;
+
+	private int watchDebounce;
+
+	private String quarantineDir;
+
+	private int progressInterval;
+
+	private int fontsCacheSize;
+
+	private String fontsRegister;
+	private String fontsIndexFile;
+
+	private String overlayTextRender;
+
+	private int streamPagesMin;
+
+	private String outputMode;
+	private String outputCompression;
+
+	private int inputMmapMinSize;
+
+	private boolean outputSync;
+	private int outputSyncDirsInterval;
+
 	public Config() {
 		stampPosition = StampPosition.TOP_LEFT;
 		stampMarginTb = 10;
@@ -57,6 +92,39 @@ public class Config {
 		copyrightFontName = "Arial";
 		copyrightFontSize = 8;
 		copyrightFontColor = Color.BLACK;
+
+		signThreads = 0;
+
+		pipelineReaders = 2;
+		pipelineWriters = 1;
+		pipelineQueueSize = 4;
+		pipelineBufferMaxSize = 1;
+		pipelineBufferPoolMaxSize = 1024;
+
+		stateEnable = true;
+
+		watchDebounce = 2000;
+
+		quarantineDir = "quarantine";
+
+		progressInterval = 2000;
+
+		fontsCacheSize = 16;
+
+		fontsRegister = "index";
+		fontsIndexFile = "axusigner.fonts";
+
+		overlayTextRender = "direct";
+
+		streamPagesMin = 500;
+
+		outputMode = "rewrite";
+		outputCompression = "balanced";
+
+		inputMmapMinSize = 16;
+
+		outputSync = true;
+		outputSyncDirsInterval = 32;
 	}
 
 	public void loadFromFile(File configFile) throws GeneralException {
@@ -92,6 +160,86 @@ public class Config {
 		copyrightFontName = Optional.ofNullable(configProps.getProperty("copyright.font.name")).filter(s -> !s.isEmpty()).orElse("Arial");
 		copyrightFontSize = MiscUtils.parseIntDef(configProps.getProperty("copyright.font.size"), 8);
 		copyrightFontColor = MiscUtils.parseColorDef(configProps.getProperty("copyright.font.color"), Color.BLACK);
+
+		signThreads = MiscUtils.parseIntDef(configProps.getProperty("sign.threads"), 0);
+
+		pipelineReaders = Math.max(1, MiscUtils.parseIntDef(configProps.getProperty("pipeline.readers"), 2));
+		pipelineWriters = Math.max(1, MiscUtils.parseIntDef(configProps.getProperty("pipeline.writers"), 1));
+		pipelineQueueSize = Math.max(1, MiscUtils.parseIntDef(configProps.getProperty("pipeline.queue.size"), 4));
+		pipelineBufferMaxSize = Math.max(0, MiscUtils.parseIntDef(configProps.getProperty("pipeline.buffer.maxsize"), 1));
+		pipelineBufferPoolMaxSize = Math.max(0, MiscUtils.parseIntDef(configProps.getProperty("pipeline.buffer.pool.maxsize"), 1024));
+
+		stateEnable = !"false".equalsIgnoreCase(configProps.getProperty("state.enable"));
+
+		watchDebounce = Math.max(0, MiscUtils.parseIntDef(configProps.getProperty("watch.debounce"), 2000));
+
+		quarantineDir = Optional.ofNullable(configProps.getProperty("quarantine.dir")).orElse("quarantine").trim();
+
+		progressInterval = Math.max(0, MiscUtils.parseIntDef(configProps.getProperty("progress.interval"), 2000));
+
+		fontsCacheSize = Math.max(1, MiscUtils.parseIntDef(configProps.getProperty("fonts.cache.size"), 16));
+
+		fontsRegister = Optional.ofNullable(configProps.getProperty("fonts.register")).orElse("index").trim().toLowerCase();
+
+		if (!fontsRegister.equals("all") && !fontsRegister.equals("config")) {
+			fontsRegister = "index";
+		}
+		fontsIndexFile = Optional.ofNullable(configProps.getProperty("fonts.index.file")).orElse("axusigner.fonts").trim();
+
+		overlayTextRender = "layout".equalsIgnoreCase(Optional.ofNullable(configProps.getProperty("overlay.text.render")).orElse("direct").trim()) ? "layout" : "direct";
+
+		streamPagesMin = Math.max(0, MiscUtils.parseIntDef(configProps.getProperty("stream.pages.min"), 500));
+
+		outputMode = "append".equalsIgnoreCase(Optional.ofNullable(configProps.getProperty("output.mode")).orElse("rewrite").trim()) ? "append" : "rewrite";
+
+		outputCompression = Optional.ofNullable(configProps.getProperty("output.compression")).orElse("balanced").trim().toLowerCase();
+
+		if (!outputCompression.equals("fast") && !outputCompression.equals("max")) {
+			outputCompression = "balanced";
+		}
+
+		inputMmapMinSize = Math.max(0, MiscUtils.parseIntDef(configProps.getProperty("input.mmap.minsize"), 16));
+
+		outputSync = !"false".equalsIgnoreCase(configProps.getProperty("output.sync"));
+		outputSyncDirsInterval = Math.max(1, MiscUtils.parseIntDef(configProps.getProperty("output.sync.dirs.interval"), 32));
+	}
+
+	public String getProfileString() {
+		// All settings which affect signed document content, used to detect changed signing profile
+
+		StringBuilder sb = new StringBuilder();
+
+		sb.append(stampPosition).append('|');
+		sb.append(stampMarginTb).append('|');
+		sb.append(stampMarginLr).append('|');
+		sb.append(stampPadding).append('|');
+		sb.append(stampBorderWidth).append('|');
+		sb.append(stampBorderColor.getRGB()).append('|');
+		sb.append(stampFontName).append('|');
+		sb.append(stampFontSize).append('|');
+		sb.append(stampFontColor.getRGB()).append('|');
+		sb.append(stampMacEnable).append('|');
+
+		sb.append(watermarkText).append('|');
+		sb.append(watermarkFontName).append('|');
+		sb.append(watermarkFontMaxSize).append('|');
+		sb.append(watermarkFontColor.getRGB()).append('|');
+		sb.append(watermarkTransparency).append('|');
+		sb.append(watermarkOffset).append('|');
+		sb.append(watermarkFlip).append('|');
+
+		sb.append(copyrightDisable).append('|');
+		sb.append(copyrightLine3Text).append('|');
+		sb.append(copyrightFontName).append('|');
+		sb.append(copyrightFontSize).append('|');
+		sb.append(copyrightFontColor.getRGB()).append('|');
+
+		sb.append(overlayTextRender).append('|');
+
+		sb.append(outputMode).append('|');
+		sb.append(outputCompression);
+
+		return sb.toString();
 	}
 
 	public StampPosition getStampPosition() {
@@ -181,4 +329,102 @@ public class Config {
 	public Color getCopyrightFontColor() {
 		return copyrightFontColor;
 	}
+
+	public int getSignThreads() {
+		return signThreads;
+	}
+
+	public int getPipelineReaders() {
+		return pipelineReaders;
+	}
+
+	public int getPipelineWriters() {
+		return pipelineWriters;
+	}
+
+	public int getPipelineQueueSize() {
+		return pipelineQueueSize;
+	}
+
+	public int getPipelineBufferMaxSize() {
+		return pipelineBufferMaxSize;
+	}
+
+	public int getPipelineBufferPoolMaxSize() {
+		return pipelineBufferPoolMaxSize;
+	}
+
+	public boolean getStateEnable() {
+		return stateEnable;
+	}
+
+	public int getWatchDebounce() {
+		return watchDebounce;
+	}
+
+	public String getQuarantineDir() {
+		return quarantineDir;
+	}
+
+	public int getProgressInterval() {
+		return progressInterval;
+	}
+
+	public int getFontsCacheSize() {
+		return fontsCacheSize;
+	}
+
+	public String getFontsRegister() {
+		return fontsRegister;
+	}
+
+	public String getFontsIndexFile() {
+		return fontsIndexFile;
+	}
+
+	public String getOverlayTextRender() {
+		return overlayTextRender;
+	}
+
+	public int getStreamPagesMin() {
+		return streamPagesMin;
+	}
+
+	public String getOutputMode() {
+		return outputMode;
+	}
+
+	public String getOutputCompression() {
+		return outputCompression;
+	}
+
+	public int getInputMmapMinSize() {
+		return inputMmapMinSize;
+	}
+
+	public boolean getOutputSync() {
+		return outputSync;
+	}
+
+	public int getOutputSyncDirsInterval() {
+		return outputSyncDirsInterval;
+	}
+
+	public List<String> getFontNames() {
+		// Fonts actually used by enabled overlays
+
+		List<String> fontNames = new ArrayList<>();
+
+		fontNames.add(stampFontName);
+
+		if (!watermarkText.isEmpty()) {
+			fontNames.add(watermarkFontName);
+		}
+
+		if (!copyrightDisable) {
+			fontNames.add(copyrightFontName);
+		}
+
+		return fontNames;
+	}
 }
@@ -0,0 +1,9 @@
+package ru.axu.signer;
+
+public class ConfigException extends GeneralException {
+	// Failure caused by settings or fonts, which would fail every document the same way
+
+	public ConfigException(String message, Throwable reason) {
+		super(message, reason);
+	}
+}
@@ -1,9 +1,6 @@
 package ru.axu.signer;
 
-import com.itextpdf.io.font.PdfEncodings;
-import com.itextpdf.kernel.colors.DeviceRgb;
 import com.itextpdf.kernel.font.PdfFont;
-import com.itextpdf.kernel.font.PdfFontFactory;
 import com.itextpdf.kernel.pdf.PdfPage;
 import com.itextpdf.kernel.pdf.canvas.PdfCanvas;
 import com.itextpdf.layout.Canvas;
@@ -12,7 +9,6 @@ import com.itextpdf.layout.property.TextAlignment;
 import com.itextpdf.layout.property.VerticalAlignment;
 
 import java.awt.*;
-import java.io.IOException;
 
 public class Copyright {
 	private String line3text;
@@ -23,6 +19,8 @@ public class Copyright {
 
 	private boolean posLeft;
 
+	private boolean directText;
+
 	public Copyright() {
 		line3text = "";
 
@@ -32,7 +30,7 @@ public class Copyright {
 
 		posLeft = false;
 
-		PdfUtils.registerSystemFontsOnce();
+		directText = false;
 	}
 
 	public void setLine3text(String line3text) {
@@ -71,14 +69,12 @@ public class Copyright {
 		this.posLeft = posLeft;
 	}
 
-	public void placeCopyright(PdfPage pdfPage, int pageNumber) throws Exception {
-		PdfFont font = null;
+	public void setDirectText(boolean directText) {
+		this.directText = directText;
+	}
 
-		try {
-			font = PdfFontFactory.createRegisteredFont(fontName, PdfEncodings.IDENTITY_H, PdfFontFactory.EmbeddingStrategy.FORCE_EMBEDDED);
-		} catch (IOException e) {
-			throw new Exception("Can't create PDF font with name \"" + fontName + "\"");
-		}
+	public void placeCopyright(PdfPage pdfPage, int pageNumber, OverlayResources overlayRes) throws Exception {
+		PdfFont font = overlayRes.getFont(fontName);
 
 		float pageHeight = pdfPage.getPageSize().getHeight();
 		float pageWidth = pdfPage.getPageSize().getWidth();
@@ -106,7 +102,25 @@ public class Copyright {
 
 		pageCanvas.saveState();
 
-		pageCanvas.setFillColor(new DeviceRgb(fontColor));
+		pageCanvas.setFillColor(overlayRes.getColor(fontColor));
+
+		if (directText) {
+			DirectText.showTextTop(pageCanvas, font, fontSize, posX, posY, al, Constants.COPYRIGHT_1, getTextWidth(font, al, Constants.COPYRIGHT_1));
+
+			posY -= fontSize + (fontSize / 2);
+
+			DirectText.showTextTop(pageCanvas, font, fontSize, posX, posY, al, Constants.COPYRIGHT_2, getTextWidth(font, al, Constants.COPYRIGHT_2));
+
+			posY -= fontSize + (fontSize / 2);
+
+			if (useLine3) {
+				DirectText.showTextTop(pageCanvas, font, fontSize, posX, posY, al, line3text, getTextWidth(font, al, line3text));
+			}
+
+			pageCanvas.restoreState();
+
+			return;
+		}
 
 		Canvas copyrightCvs = new Canvas(pageCanvas, pdfPage.getPageSize());
 
@@ -129,4 +143,9 @@ public class Copyright {
 
 		pageCanvas.restoreState();
 	}
+
+	private float getTextWidth(PdfFont font, TextAlignment al, String text) {
+		// Only right-aligned lines are shifted by their width
+		return al == TextAlignment.RIGHT ? font.getWidth(text, fontSize) : 0.0f;
+	}
 }
@@ -0,0 +1,28 @@
+package ru.axu.signer;
+
+import com.itextpdf.kernel.font.PdfFont;
+import com.itextpdf.kernel.pdf.canvas.PdfCanvas;
+import com.itextpdf.layout.property.TextAlignment;
+import com.itextpdf.layout.renderer.TextRenderer;
+
+public class DirectText {
+	// Single line of text drawn with content stream text operators, at the same position as layout
+	// engine puts top-aligned paragraph: baseline is below top by font ascender, as layout counts it.
+	// Text width is measured by caller, which needs it anyway to size the box around text
+
+	public static void showTextTop(PdfCanvas canvas, PdfFont font, float fontSize, float posX, float posY, TextAlignment al, String text, float textWidth) {
+		float ascender = TextRenderer.calculateAscenderDescender(font)[0];
+
+		float textPosX = posX;
+
+		if (al == TextAlignment.RIGHT) {
+			textPosX -= textWidth;
+		}
+
+		canvas.beginText();
+		canvas.setFontAndSize(font, fontSize);
+		canvas.moveText(textPosX, posY - ascender * fontSize / 1000);
+		canvas.showText(text);
+		canvas.endText();
+	}
+}
@@ -0,0 +1,329 @@
+package ru.axu.signer;
+
+import com.itextpdf.io.font.FontProgramDescriptor;
+import com.itextpdf.io.font.FontProgramDescriptorFactory;
+import com.itextpdf.io.font.TrueTypeCollection;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class FontIndex {
+	// Persistent index of system fonts by lowercase name. Font files are opened only when index is built,
+	// later runs just check modification times of font directories.
+	// Index file holds "D" lines with directory path and modification time, "F" lines with font name and file path
+	// and "M" lines with names of configured fonts not found by last scan, so they are not looked for again
+
+	private static final String HEADER = "AXUSIGNER-FONTS 1";
+
+	private final File indexFile;
+
+	private final Map<String, Long> dirMtimes;
+	private final Map<String, String> fontPaths;
+	private final Set<String> missingFonts;
+
+	public FontIndex(File indexFile) {
+		if (indexFile == null) {
+			throw new IllegalArgumentException("Argument value can't be null!");
+		}
+
+		this.indexFile = indexFile;
+
+		dirMtimes = new HashMap<>();
+		fontPaths = new HashMap<>();
+		missingFonts = new HashSet<>();
+	}
+
+	public File getIndexFile() {
+		return indexFile;
+	}
+
+	public static List<Path> getSystemFontDirs() {
+		// Same directories as scanned by iText when registering system fonts
+
+		List<Path> fontDirs = new ArrayList<>();
+
+		String winDir = System.getenv("windir");
+
+		if (winDir != null) {
+			fontDirs.add(new File(winDir, "fonts").toPath());
+		}
+
+		for (String dir : new String[] {"/usr/share/X11/fonts", "/usr/X/lib/X11/fonts", "/usr/openwin/lib/X11/fonts", "/usr/share/fonts",
+			"/usr/X11R6/lib/X11/fonts", "/Library/Fonts", "/System/Library/Fonts"}) {
+			fontDirs.add(new File(dir).toPath());
+		}
+
+		return fontDirs;
+	}
+
+	public boolean load() {
+		// Returns false when there is no index or it is outdated, so it has to be built again
+
+		dirMtimes.clear();
+		fontPaths.clear();
+		missingFonts.clear();
+
+		if (!indexFile.exists()) {
+			return false;
+		}
+
+		try (BufferedReader in = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+			String line = in.readLine();
+
+			if (!HEADER.equals(line)) {
+				return false;
+			}
+
+			while ((line = in.readLine()) != null) {
+				String[] parts = line.split("\t", 3);
+
+				if (parts.length == 2 && parts[0].equals("M")) {
+					missingFonts.add(parts[1]);
+				}
+
+				if (parts.length != 3) {
+					continue;
+				}
+
+				if (parts[0].equals("D")) {
+					dirMtimes.put(parts[2], Long.parseLong(parts[1]));
+				} else if (parts[0].equals("F")) {
+					fontPaths.put(parts[1], parts[2]);
+				}
+			}
+		} catch (Exception e) {
+			return false;
+		}
+
+		return isUpToDate();
+	}
+
+	public void build() throws GeneralException {
+		dirMtimes.clear();
+		fontPaths.clear();
+		missingFonts.clear();
+
+		for (Path fontDir : getSystemFontDirs()) {
+			if (!Files.isDirectory(fontDir)) {
+				continue;
+			}
+
+			try {
+				Files.walkFileTree(fontDir, new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+						dirMtimes.put(dir.toString(), attrs.lastModifiedTime().toMillis());
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+						addFontFile(fontPaths, file.toString());
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFileFailed(Path file, IOException e) {
+						// Unreadable directories are skipped like iText does
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			} catch (IOException e) {
+				throw new GeneralException("Can't scan font directory \"" + fontDir + "\"!", e);
+			}
+		}
+	}
+
+	public static Map<String, String> findFontFiles(List<String> fontNames) throws GeneralException {
+		// Look for given fonts without building index. Only files which name starts like one of font names
+		// are opened, as font files are usually named after their font (DejaVuSans.ttf, cour.ttf for Courier New).
+		// Returns file paths of found fonts by lowercase font name
+
+		List<String> namePrefixes = new ArrayList<>();
+
+		for (String fontName : fontNames) {
+			String normalName = normalizeName(fontName);
+			namePrefixes.add(normalName.substring(0, Math.min(3, normalName.length())));
+		}
+
+		Map<String, String> candidatePaths = new HashMap<>();
+
+		for (Path fontDir : getSystemFontDirs()) {
+			if (!Files.isDirectory(fontDir)) {
+				continue;
+			}
+
+			try {
+				Files.walkFileTree(fontDir, new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+						String fileName = normalizeName(file.getFileName().toString());
+
+						for (String namePrefix : namePrefixes) {
+							if (!namePrefix.isEmpty() && fileName.startsWith(namePrefix)) {
+								addFontFile(candidatePaths, file.toString());
+								break;
+							}
+						}
+
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFileFailed(Path file, IOException e) {
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			} catch (IOException e) {
+				throw new GeneralException("Can't scan font directory \"" + fontDir + "\"!", e);
+			}
+		}
+
+		Map<String, String> foundPaths = new HashMap<>();
+
+		for (String fontName : fontNames) {
+			String fontPath = candidatePaths.get(fontName.toLowerCase());
+
+			if (fontPath != null) {
+				foundPaths.put(fontName.toLowerCase(), fontPath);
+			}
+		}
+
+		return foundPaths;
+	}
+
+	public void save() throws GeneralException {
+		Path tmpPath = new File(indexFile.getPath() + ".tmp").toPath();
+
+		try {
+			try (BufferedWriter out = Files.newBufferedWriter(tmpPath, StandardCharsets.UTF_8)) {
+				out.write(HEADER);
+				out.newLine();
+
+				for (Map.Entry<String, Long> e : dirMtimes.entrySet()) {
+					out.write("D\t" + e.getValue() + "\t" + e.getKey());
+					out.newLine();
+				}
+
+				for (Map.Entry<String, String> e : fontPaths.entrySet()) {
+					out.write("F\t" + e.getKey() + "\t" + e.getValue());
+					out.newLine();
+				}
+
+				for (String fontName : missingFonts) {
+					out.write("M\t" + fontName);
+					out.newLine();
+				}
+			}
+
+			Files.move(tmpPath, indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new GeneralException("Can't save font index file \"" + indexFile.getAbsolutePath() + "\"!", e);
+		}
+	}
+
+	public String findFontPath(String fontName) {
+		return fontPaths.get(fontName.toLowerCase());
+	}
+
+	public boolean isMissingFont(String fontName) {
+		return missingFonts.contains(fontName.toLowerCase());
+	}
+
+	public void addMissingFont(String fontName) {
+		missingFonts.add(fontName.toLowerCase());
+	}
+
+	public Map<String, String> getFontPaths() {
+		return fontPaths;
+	}
+
+	private boolean isUpToDate() {
+		// Any added, removed or changed font directory changes modification time of itself or its parent
+
+		for (Path fontDir : getSystemFontDirs()) {
+			if (Files.isDirectory(fontDir) != dirMtimes.containsKey(fontDir.toString())) {
+				return false;
+			}
+		}
+
+		for (Map.Entry<String, Long> e : dirMtimes.entrySet()) {
+			File dir = new File(e.getKey());
+
+			if (!dir.isDirectory() || dir.lastModified() != e.getValue()) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static String normalizeName(String name) {
+		// Only letters and digits are compared, so "DejaVu Sans" matches "DejaVuSans-Bold.ttf"
+
+		StringBuilder sb = new StringBuilder();
+
+		for (char c : name.toLowerCase().toCharArray()) {
+			if (Character.isLetterOrDigit(c)) {
+				sb.append(c);
+			}
+		}
+
+		return sb.toString();
+	}
+
+	private static void addFontFile(Map<String, String> fontPaths, String filePath) {
+		String lowerPath = filePath.toLowerCase();
+
+		try {
+			if (lowerPath.endsWith(".ttf") || lowerPath.endsWith(".otf")) {
+				addFont(fontPaths, filePath);
+			} else if (lowerPath.endsWith(".ttc")) {
+				int ttcSize = new TrueTypeCollection(filePath).getTTCSize();
+
+				for (int i = 0; i < ttcSize; i++) {
+					addFont(fontPaths, filePath + "," + i);
+				}
+			}
+		} catch (Exception e) {
+			// Broken font files are skipped like iText does
+		}
+	}
+
+	private static void addFont(Map<String, String> fontPaths, String fontPath) {
+		FontProgramDescriptor descriptor = FontProgramDescriptorFactory.fetchDescriptor(fontPath);
+
+		if (descriptor == null) {
+			return;
+		}
+
+		fontPaths.put(descriptor.getFontNameLowerCase(), fontPath);
+
+		for (String fullName : descriptor.getFullNameAllLangs()) {
+			fontPaths.put(fullName.toLowerCase(), fontPath);
+		}
+
+		// Family name points to regular style of the family, if there is one
+
+		String familyName = descriptor.getFamilyNameLowerCase();
+
+		if (familyName != null && !familyName.isEmpty() && (!fontPaths.containsKey(familyName) || (!descriptor.isBold() && !descriptor.isItalic()))) {
+			fontPaths.put(familyName, fontPath);
+		}
+	}
+}
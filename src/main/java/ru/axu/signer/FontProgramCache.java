@@ -0,0 +1,98 @@
+package ru.axu.signer;
+
+import com.itextpdf.io.font.FontProgram;
+import com.itextpdf.io.font.FontProgramFactory;
+import com.itextpdf.io.font.constants.FontStyles;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class FontProgramCache {
+	// Parsed font programs shared by all documents in JVM, so font files are read and parsed once.
+	// Least recently used programs are dropped when cache is full, documents only create lightweight
+	// PdfFont wrappers around cached programs. Cache hits take no lock, only loading of a program does
+
+	private static class Entry {
+		private final FontProgram program;
+		private volatile long lastUsed;
+
+		private Entry(FontProgram program, long lastUsed) {
+			this.program = program;
+			this.lastUsed = lastUsed;
+		}
+	}
+
+	private static volatile int maxSize = 16;
+
+	private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+	private static final AtomicLong useCounter = new AtomicLong();
+
+	public static void setMaxSize(int maxSize) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("Argument value can't be less than 1!");
+		}
+
+		FontProgramCache.maxSize = maxSize;
+	}
+
+	public static FontProgram getFontProgram(String fontName) throws IOException {
+		String fontKey = fontName.toLowerCase();
+
+		Entry entry = entries.get(fontKey);
+
+		if (entry == null) {
+			entry = loadFontProgram(fontName, fontKey);
+		}
+
+		entry.lastUsed = useCounter.incrementAndGet();
+
+		return entry.program;
+	}
+
+	private static synchronized Entry loadFontProgram(String fontName, String fontKey) throws IOException {
+		Entry entry = entries.get(fontKey);
+
+		if (entry != null) {
+			return entry;
+		}
+
+		// Bypass iText own font cache, which is not bounded. Fonts which are not in font registry
+		// may still be one of standard PDF fonts known to iText
+
+		String fontPath = FontRegistry.findFontPath(fontName);
+
+		FontProgram program = fontPath != null ? FontProgramFactory.createFont(fontPath, false) :
+			FontProgramFactory.createRegisteredFont(fontName, FontStyles.UNDEFINED, false);
+
+		if (program == null) {
+			throw new IOException("Font \"" + fontName + "\" is not registered");
+		}
+
+		while (entries.size() >= maxSize) {
+			evictLeastRecentlyUsed();
+		}
+
+		entry = new Entry(program, useCounter.incrementAndGet());
+
+		entries.put(fontKey, entry);
+
+		return entry;
+	}
+
+	private static void evictLeastRecentlyUsed() {
+		String lruKey = null;
+		long lruUsed = Long.MAX_VALUE;
+
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			if (e.getValue().lastUsed < lruUsed) {
+				lruKey = e.getKey();
+				lruUsed = e.getValue().lastUsed;
+			}
+		}
+
+		entries.remove(lruKey);
+	}
+}
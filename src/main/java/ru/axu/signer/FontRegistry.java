@@ -0,0 +1,111 @@
+package ru.axu.signer;
+
+import com.itextpdf.io.font.FontProgramFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class FontRegistry {
+	// Font file paths by lowercase font name, filled once before documents are rendered and
+	// read by rendering threads without locking. iText font registry is not used for lookups,
+	// as it is not safe to change and read it concurrently
+
+	private static final Map<String, String> fontPaths = new ConcurrentHashMap<>();
+
+	private static volatile boolean initialized = false;
+
+	public static void init(Config config) {
+		if (initialized) {
+			return;
+		}
+
+		synchronized (FontRegistry.class) {
+			if (initialized) {
+				return;
+			}
+
+			FontIndex fontIndex = new FontIndex(new File(config.getFontsIndexFile()));
+
+			if (config.getFontsRegister().equals("config")) {
+				initConfigFonts(config, fontIndex);
+
+				initialized = true;
+
+				return;
+			}
+
+			try {
+				boolean rebuild = config.getFontsRegister().equals("all") || !fontIndex.load();
+
+				if (!rebuild) {
+					// Font file may have been replaced without changing its directory, so unknown fonts are looked for once more.
+					// Fonts not found by that scan are remembered until font directories change
+
+					for (String fontName : config.getFontNames()) {
+						rebuild |= isUnknownFont(fontIndex, fontName) && !fontIndex.isMissingFont(fontName);
+					}
+				}
+
+				if (rebuild) {
+					fontIndex.build();
+
+					for (String fontName : config.getFontNames()) {
+						if (isUnknownFont(fontIndex, fontName)) {
+							fontIndex.addMissingFont(fontName);
+						}
+					}
+
+					fontIndex.save();
+				}
+			} catch (GeneralException e) {
+				// Index file can't be written, but fonts found by scan are still usable
+			}
+
+			fontPaths.putAll(fontIndex.getFontPaths());
+
+			initialized = true;
+		}
+	}
+
+	private static void initConfigFonts(Config config, FontIndex fontIndex) {
+		// Only fonts named in settings are registered. They are taken from index when it is up to date,
+		// the rest are looked for among font files named like them, and index is never built or changed
+
+		boolean indexLoaded = fontIndex.load();
+
+		List<String> unresolvedNames = new ArrayList<>();
+
+		for (String fontName : config.getFontNames()) {
+			String fontPath = indexLoaded ? fontIndex.findFontPath(fontName) : null;
+
+			if (fontPath != null) {
+				fontPaths.put(fontName.toLowerCase(), fontPath);
+			} else if (!FontProgramFactory.isRegisteredFont(fontName)) {
+				unresolvedNames.add(fontName);
+			}
+		}
+
+		if (unresolvedNames.isEmpty()) {
+			return;
+		}
+
+		try {
+			fontPaths.putAll(FontIndex.findFontFiles(unresolvedNames));
+		} catch (GeneralException e) {
+			// Fonts which are not found fail overlay check before signing
+		}
+	}
+
+	private static boolean isUnknownFont(FontIndex fontIndex, String fontName) {
+		// Standard PDF fonts are built into iText and never have to be found in system
+
+		return fontIndex.findFontPath(fontName) == null && !FontProgramFactory.isRegisteredFont(fontName);
+	}
+
+	public static String findFontPath(String fontName) {
+		return fontPaths.get(fontName.toLowerCase());
+	}
+}
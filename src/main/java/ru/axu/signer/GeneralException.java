@@ -5,7 +5,7 @@ public class GeneralException extends Exception {
 		super(message);
 	}
 
-	public GeneralException(String message, Exception reason) {
+	public GeneralException(String message, Throwable reason) {
 		super(message, reason);
 	}
 }
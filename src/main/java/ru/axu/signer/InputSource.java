@@ -0,0 +1,71 @@
+package ru.axu.signer;
+
+import com.itextpdf.io.source.GetBufferedRandomAccessSource;
+import com.itextpdf.io.source.IRandomAccessSource;
+import com.itextpdf.io.source.RandomAccessSourceFactory;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class InputSource {
+	// Random access to source files read from disk. Local files get iText default source, which maps
+	// file in pages paged in by OS on demand without copying them into heap. Files on network mounts
+	// are never mapped, because mapped file truncated or lost by the server crashes reading thread,
+	// they are read through plain buffered file reads. User space file systems (fuse.sshfs and alike)
+	// are treated as network ones
+
+	private static final String[] NETWORK_FS_TYPES = {"nfs", "cifs", "smb", "fuse.", "9p", "afs", "ncp", "davfs"};
+
+	private static final Map<Path, Boolean> networkDirs = new ConcurrentHashMap<>();
+
+	public static IRandomAccessSource open(Path path, boolean mapAllowed) throws IOException {
+		RandomAccessSourceFactory factory = new RandomAccessSourceFactory();
+
+		if (mapAllowed && !isNetworkPath(path)) {
+			// Falls back to plain file reads by itself when file can't be mapped
+			return factory.createBestSource(path.toString());
+		}
+
+		// Plain file source reads byte by byte, so reads go through buffer like mapped ones do
+
+		return new GetBufferedRandomAccessSource(factory.createSource(new RandomAccessFile(path.toFile(), "r")));
+	}
+
+	public static boolean isNetworkPath(Path path) {
+		// Windows network shares are recognized by UNC path, others by file system type of mount.
+		// File system type lookup is not cheap, so it is done once per directory
+
+		Path dirPath = path.toAbsolutePath().getParent();
+
+		if (dirPath == null) {
+			return false;
+		}
+
+		if (dirPath.toString().startsWith("\\\\")) {
+			return true;
+		}
+
+		return networkDirs.computeIfAbsent(dirPath, dir -> {
+			try {
+				FileStore store = Files.getFileStore(dir);
+
+				String type = store.type().toLowerCase();
+
+				for (String networkType : NETWORK_FS_TYPES) {
+					if (type.startsWith(networkType)) {
+						return true;
+					}
+				}
+			} catch (IOException e) {
+				// Unknown file system is treated as local one
+			}
+
+			return false;
+		});
+	}
+}
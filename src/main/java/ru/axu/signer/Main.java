@@ -1,8 +1,5 @@
 package ru.axu.signer;
 
-import com.itextpdf.kernel.pdf.PdfDocument;
-import com.itextpdf.kernel.pdf.PdfReader;
-import com.itextpdf.kernel.pdf.PdfWriter;
 import org.beryx.textio.TextIO;
 import org.beryx.textio.TextIoFactory;
 import org.beryx.textio.TextTerminal;
@@ -32,6 +29,12 @@ public class Main {
 	private static RandomGenerator secureRandom;
 
   public static void main(String[] args) {
+		// Run headless batch signing without terminal when command line options are given
+
+		if (args.length > 0) {
+			System.exit(execHeadlessSign(args));
+		}
+
   	// Create and setup terminal
 
 		con = TextIoFactory.getTextIO();
@@ -56,10 +59,7 @@ public class Main {
 		Translate.addTranslation("characters", "символов");
 		Translate.addTranslation("Expected format", "Необходимый формат");
 
-		// Create secure random source based on GOST Streebog 256
-
-		secureRandom = new DigestRandomGenerator(new GOST3411_2012_256Digest());
-		secureRandom.addSeedMaterial(System.currentTimeMillis());
+		secureRandom = createSecureRandom();
 
 		// Print welcome message
 
@@ -78,6 +78,15 @@ public class Main {
 		System.exit(0);
 	}
 
+	private static RandomGenerator createSecureRandom() {
+		// Create secure random source based on GOST Streebog 256
+
+		RandomGenerator rg = new DigestRandomGenerator(new GOST3411_2012_256Digest());
+		rg.addSeedMaterial(System.currentTimeMillis());
+
+		return rg;
+	}
+
 	private static void printSuccess(String m) {
 		term.executeWithPropertiesConfigurator(
 			p -> { p.setPromptColor(Color.GREEN); },
@@ -432,211 +441,96 @@ public class Main {
 			return;
 		}
 
-		// Get list of all source PDF files in current directory (without .signed.pdf extension)
+		// Check there is anything to sign, files are listed while they are signed
 
-		ArrayList<Path> srcPdfFilePaths = new ArrayList<>();
+		boolean hasSrcFiles;
 
 		try {
-			Files.walk(inPath.toPath()).forEach(path -> {
-				if (!path.toFile().isFile()) {
-					// Do not count directories
-					return;
-				}
-
-				if (path.toString().toLowerCase().endsWith(".pdf")) {
-					srcPdfFilePaths.add(path);
-				}
-			});
+			hasSrcFiles = SdsSigner.hasSrcPdfFiles(inPath.toPath());
 		} catch (IOException e) {
 			printError("Ошибка при получении списка исходных PDF файлов:");
 			printExceptionTrace(e);
 			return;
 		}
 
-		if (srcPdfFilePaths.isEmpty()) {
+		if (!hasSrcFiles) {
 			printError("Не найдено ни одного PDF файла для обработки!");
 			return;
 		}
 
-		term.executeWithPropertiesConfigurator(
-			p -> { p.setPromptColor(Color.GREEN); },
-			t -> { t.println("Список PDF файлов для обработки:"); }
-		);
-
-		for (Path pdfFile : srcPdfFilePaths) {
-			term.executeWithPropertiesConfigurator(
-				p -> { p.setPromptColor(Color.WHITE); },
-				t -> { t.println(pdfFile.getFileName().toString()); }
-			);
-		}
-
-		term.println();
-
 		SdsKeyEntity ke = getKeyEntityFromUser();
 
 		if (ke == null) {
 			return;
 		}
 
-		printSuccess("Начинаем подписание:");
-
-		for (Path srcPdfFilePath : srcPdfFilePaths) {
-			String inPdfStrFile = srcPdfFilePath.getFileName().toString();
-
-			term.executeWithPropertiesConfigurator(
-				p -> { p.setPromptColor(Color.WHITE); },
-				t -> { t.println("Обрабатываю файл " + inPdfStrFile); }
-			);
-
-			String inPdfStrPath = srcPdfFilePath.toString();
-			String outPdfStrPath = new File(outPath, inPdfStrFile.substring(0, inPdfStrFile.lastIndexOf('.')) + ".signed.pdf").toString();
-
-			PdfDocument pdfDoc = null;
-
-			try {
-				pdfDoc = new PdfDocument(new PdfReader(inPdfStrPath), new PdfWriter(outPdfStrPath));
-			} catch (IOException e) {
-				printError("Ошибка при попытке открыть исходный или создать целевой PDF-файл:");
-				printExceptionTrace(e);
-				return;
-			}
-
-			// Add simple digital signature stamp on first page
-
-			SdsStamp stamp = new SdsStamp();
-
-			stamp.setStampPosition(config.getStampPosition());
-
-			stamp.setSignerText(ke.getPersonText());
-			stamp.setPosText(ke.getPositionText());
-
-			LocalDateTime dateTimeNow = LocalDateTime.now();
-
-			stamp.setDateTime(dateTimeNow);
-
-			stamp.setKeyIdText(ke.getEntityId().toString());
+		SdsSigner signer = new SdsSigner(config, ke, secureRandom);
 
-			if (config.getStampMacEnable()) {
-				byte[] docIdBytes = new byte[16];
-				secureRandom.nextBytes(docIdBytes);
-				UUID docId = MiscUtils.getUuidFromByteArray(docIdBytes);
+		printSuccess("Начинаем подписание (потоков: " + signer.getThreads() + "):");
 
-				stamp.setDocIdText(docId.toString());
+		boolean signedAll;
 
-				byte[] personBytes = ke.getPersonText().getBytes(StandardCharsets.UTF_16);
-				byte[] positionBytes = ke.getPositionText().getBytes(StandardCharsets.UTF_16);
-
-				byte[] entityIdBytes = MiscUtils.getByteArrayFromUuid(ke.getEntityId());
-
-				ByteBuffer bb = ByteBuffer.allocate(1024);
-
-				bb.put(personBytes);
-				bb.put(positionBytes);
-				bb.putLong(dateTimeNow.toEpochSecond(ZoneOffset.UTC));
-				bb.put(entityIdBytes);
-				bb.put(docIdBytes);
-
-				bb.flip();
-				byte[] plainForMacBytes = new byte[bb.remaining()];
-				bb.get(plainForMacBytes);
-
-				byte[] docMac = ke.calcMessageMac(plainForMacBytes);
-
-				stamp.setMacText(Hex.toHexString(docMac));
-			}
-
-			try {
-				stamp.setFontColor(config.getStampFontColor());
-				stamp.setFontName(config.getStampFontName());
-				stamp.setFontSize(config.getStampFontSize());
-
-				stamp.setBorderColor(config.getStampBorderColor());
-				stamp.setBorderWidth(config.getStampBorderWidth());
-
-				stamp.setMarginLr(config.getStampMarginLr());
-				stamp.setMarginTb(config.getStampMarginTb());
-				stamp.setPadding(config.getStampPadding());
-
-				stamp.setMacEnable(config.getStampMacEnable());
-			} catch (Exception e) {
-				printError("Ошибка при задании атрибутов штампа:");
-				printExceptionTrace(e);
-				return;
-			}
-
-			try {
-				stamp.placeStamp(pdfDoc.getFirstPage(), 1);
-			} catch (Exception e) {
-				printError("Ошибка при постановке штампа:");
-				printExceptionTrace(e);
-				return;
-			}
-
-			// Add watermark on every page
-			if (!config.getWatermarkText().isEmpty()) {
-				Watermark watermark = new Watermark();
-
-				watermark.setText(config.getWatermarkText());
-
-				try {
-					watermark.setFontColor(config.getWatermarkFontColor());
-					watermark.setFontName(config.getWatermarkFontName());
-					watermark.setFontMaxSize(config.getWatermarkFontMaxSize());
-
-					watermark.setTransparency(config.getWatermarkTransparency());
-
-					watermark.setOffset(config.getWatermarkOffset());
+		try {
+			signedAll = signer.signAll(inPath.toPath(), outPath.toPath(), new SdsSignListener() {
+				@Override
+				public void documentStarted(Path srcPdfFilePath) {
+					synchronized (term) {
+						term.executeWithPropertiesConfigurator(
+							p -> { p.setPromptColor(Color.WHITE); },
+							t -> { t.println("Обрабатываю файл " + srcPdfFilePath.getFileName().toString()); }
+						);
+					}
+				}
 
-					watermark.setFlip(config.getWatermarkFlip());
-				} catch (Exception e) {
-					printError("Ошибка при задании атрибутов водяного знака:");
-					printExceptionTrace(e);
-					return;
+				@Override
+				public void documentSigned(Path srcPdfFilePath, Path outPdfFilePath) {
 				}
 
-				for (int i = 1; i <= pdfDoc.getNumberOfPages(); i++) {
-					try {
-						watermark.placeWatermark(pdfDoc.getPage(i), i);
-					} catch (Exception e) {
-						printError("Ошибка при постановке водяного знака:");
-						printExceptionTrace(e);
-						return;
+				@Override
+				public void documentSkipped(Path srcPdfFilePath) {
+					synchronized (term) {
+						term.executeWithPropertiesConfigurator(
+							p -> { p.setPromptColor(Color.GRAY); },
+							t -> { t.println("Файл не изменился и пропущен: " + srcPdfFilePath.getFileName().toString()); }
+						);
 					}
 				}
-			}
 
-			// Add copyright on last page
-
-			if (!config.getCopyrightDisable()) {
-				Copyright copyright = new Copyright();
-
-				copyright.setPosLeft(pdfDoc.getNumberOfPages() == 1 && config.getStampPosition() == StampPosition.BOTTOM_RIGHT);
-
-				try {
-					copyright.setLine3text(config.getCopyrightLine3Text());
+				@Override
+				public void documentFailed(Path srcPdfFilePath, Path quarantineFilePath, Exception e) {
+					synchronized (term) {
+						printError("Ошибка при обработке файла " + srcPdfFilePath.getFileName().toString() + ":");
+						printExceptionTrace(e);
 
-					copyright.setFontColor(config.getCopyrightFontColor());
-					copyright.setFontName(config.getCopyrightFontName());
-					copyright.setFontSize(config.getCopyrightFontSize());
-				} catch (Exception e) {
-					printError("Ошибка при задании атрибутов копирайта:");
-					printExceptionTrace(e);
-					return;
+						if (quarantineFilePath != null) {
+							printError("Файл перемещен в карантин: " + quarantineFilePath.toAbsolutePath());
+						}
+					}
 				}
 
-				try {
-					copyright.placeCopyright(pdfDoc.getPage(pdfDoc.getNumberOfPages()), pdfDoc.getNumberOfPages());
-				} catch (Exception e) {
-					printError("Ошибка при постановке копирайта:");
-					printExceptionTrace(e);
-					return;
-				}
-			}
+				@Override
+				public void progressUpdated(SignStats stats) {
+					String m = formatProgress(stats);
 
-			pdfDoc.close();
+					synchronized (term) {
+						term.executeWithPropertiesConfigurator(
+							p -> { p.setPromptColor(Color.CYAN); },
+							t -> { t.println(m); }
+						);
+					}
+				}
+			});
+		} catch (InterruptedException | GeneralException e) {
+			printError("Подписание прервано:");
+			printExceptionTrace(e);
+			return;
 		}
 
-		printSuccess("Все файлы обработаны!");
+		if (signedAll) {
+			printSuccess("Все файлы обработаны!");
+		} else {
+			printError("Не все файлы удалось подписать, ошибки указаны выше!");
+		}
 	}
 
 	private static void execSdsShowKeyInfo() {
@@ -716,4 +610,203 @@ public class Main {
 			t -> { t.println("Вычисленная имитовставка: " + Hex.toHexString(docMac)); }
 		);
 	}
+
+	private static String formatProgress(SignStats stats) {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("Обработано ").append(stats.getDoneFiles());
+
+		if (stats.getTotalFiles() > 0) {
+			sb.append(" из ").append(stats.getTotalFiles());
+		}
+
+		sb.append(" (подписано ").append(stats.getSignedFiles())
+			.append(", пропущено ").append(stats.getSkippedFiles())
+			.append(", ошибок ").append(stats.getFailedFiles())
+			.append(", в работе ").append(stats.getInWorkFiles()).append(")");
+
+		sb.append(String.format("; %.1f файл/с, %.1f стр/с, чтение %.1f МБ/с, запись %.1f МБ/с",
+			stats.getFilesPerSec(), stats.getPagesPerSec(), stats.getMbInPerSec(), stats.getMbOutPerSec()));
+
+		sb.append(String.format("; среднее время: чтение %.0f мс, подпись %.0f мс, запись %.0f мс",
+			stats.getReadTimer().getAvgMs(), stats.getRenderTimer().getAvgMs(), stats.getWriteTimer().getAvgMs()));
+
+		long etaSec = stats.getEtaSec();
+
+		if (etaSec >= 0) {
+			sb.append(String.format("; осталось ~%d:%02d:%02d", etaSec / 3600, etaSec / 60 % 60, etaSec % 60));
+		}
+
+		return sb.toString();
+	}
+
+	private static void printHeadlessError(String m, Exception e) {
+		synchronized (System.err) {
+			System.err.println(m);
+			System.err.print(MiscUtils.getStackTrace(e));
+		}
+	}
+
+	private static int execHeadlessSign(String[] args) {
+		CliOptions opts;
+
+		try {
+			opts = CliOptions.parse(args);
+		} catch (GeneralException e) {
+			System.err.println("Ошибка в параметрах командной строки: " + e.getMessage());
+			System.err.println(CliOptions.USAGE);
+			return 2;
+		}
+
+		if (opts.getHelp()) {
+			System.out.println(CliOptions.USAGE);
+			return 0;
+		}
+
+		secureRandom = createSecureRandom();
+
+		// Load config data from file
+
+		Config config = new Config();
+
+		try {
+			config.loadFromFile(opts.getConfigFile());
+		} catch (GeneralException e) {
+			printHeadlessError("Ошибка при загрузке файла конфигурации \"" + opts.getConfigFile().getAbsolutePath() + "\":", e);
+			return 1;
+		}
+
+		// Load key file with password from file or environment
+
+		SdsKeyEntity ke = new SdsKeyEntity(secureRandom);
+
+		try {
+			ke.loadFromFile(opts.getKeyFile(), opts.readPassword());
+		} catch (Exception e) {
+			printHeadlessError("Ошибка при загрузке файла ключей \"" + opts.getKeyFile().getAbsolutePath() + "\":", e);
+			return 1;
+		}
+
+		File inPath = opts.getInPath();
+		File outPath = opts.getOutPath();
+
+		if (!inPath.isDirectory()) {
+			System.err.println("Директория исходных файлов \"" + inPath.getAbsolutePath() + "\" не найдена");
+			return 1;
+		}
+
+		if (!outPath.isDirectory() && !outPath.mkdirs()) {
+			System.err.println("Не удается создать директорию для подписанных файлов \"" + outPath.getAbsolutePath() + "\"");
+			return 1;
+		}
+
+		SdsSigner signer = new SdsSigner(config, ke, secureRandom);
+
+		if (opts.getThreads() > 0) {
+			signer.setThreads(opts.getThreads());
+		}
+
+		signer.setForce(opts.getForce());
+
+		if (opts.getQuarantinePath() != null) {
+			signer.setQuarantinePath(opts.getQuarantinePath().toPath());
+		}
+
+		SdsSignListener listener = new SdsSignListener() {
+			@Override
+			public void documentStarted(Path srcPdfFilePath) {
+			}
+
+			@Override
+			public void documentSigned(Path srcPdfFilePath, Path outPdfFilePath) {
+				System.out.println("Подписан файл " + srcPdfFilePath + " -> " + outPdfFilePath);
+			}
+
+			@Override
+			public void documentSkipped(Path srcPdfFilePath) {
+				System.out.println("Файл не изменился и пропущен: " + srcPdfFilePath);
+			}
+
+			@Override
+			public void documentFailed(Path srcPdfFilePath, Path quarantineFilePath, Exception e) {
+				printHeadlessError("Ошибка при обработке файла " + srcPdfFilePath + ":", e);
+
+				if (quarantineFilePath != null) {
+					System.err.println("Файл перемещен в карантин: " + quarantineFilePath);
+				}
+			}
+
+			@Override
+			public void progressUpdated(SignStats stats) {
+				System.out.println(formatProgress(stats));
+			}
+		};
+
+		if (opts.getWatch()) {
+			return execHeadlessWatch(signer, inPath, outPath, listener);
+		}
+
+		boolean hasSrcFiles;
+
+		try {
+			hasSrcFiles = SdsSigner.hasSrcPdfFiles(inPath.toPath());
+		} catch (IOException e) {
+			printHeadlessError("Ошибка при получении списка исходных PDF файлов:", e);
+			return 1;
+		}
+
+		if (!hasSrcFiles) {
+			System.out.println("Не найдено ни одного PDF файла для обработки");
+			return 0;
+		}
+
+		System.out.println("Начинаем подписание (потоков: " + signer.getThreads() + ")");
+
+		boolean signedAll;
+
+		try {
+			signedAll = signer.signAll(inPath.toPath(), outPath.toPath(), listener);
+		} catch (InterruptedException | GeneralException e) {
+			printHeadlessError("Подписание прервано:", e);
+			return 1;
+		}
+
+		if (!signedAll) {
+			System.err.println("Не все файлы удалось подписать, ошибки указаны выше");
+			return 1;
+		}
+
+		System.out.println("Все файлы обработаны!");
+
+		return 0;
+	}
+
+	private static int execHeadlessWatch(SdsSigner signer, File inPath, File outPath, SdsSignListener listener) {
+		WatchDaemon daemon = new WatchDaemon(signer, inPath.toPath(), outPath.toPath(), listener);
+
+		// Stop watching on Ctrl+C or service stop, but let documents already in work be finished
+
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			daemon.stop();
+
+			try {
+				daemon.awaitStopped();
+			} catch (InterruptedException e) {
+				// Nothing to do, JVM is going down anyway
+			}
+		}));
+
+		System.out.println("Ожидаю файлы в директории \"" + inPath.getAbsolutePath() + "\" (потоков: " + signer.getThreads() + ")");
+
+		try {
+			daemon.run();
+		} catch (InterruptedException | GeneralException e) {
+			printHeadlessError("Наблюдение за директорией прервано:", e);
+			return 1;
+		}
+
+		System.out.println("Наблюдение за директорией остановлено");
+
+		return 0;
+	}
 }
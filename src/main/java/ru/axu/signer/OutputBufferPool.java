@@ -0,0 +1,89 @@
+package ru.axu.signer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+public class OutputBufferPool {
+	// In-memory outputs of signed documents, reused by next documents once they are written.
+	// Only buffers up to max size are kept, so one big document does not hold its memory forever
+
+	public static class Buffer extends ByteArrayOutputStream {
+		private Buffer(int size) {
+			super(size);
+		}
+
+		public int capacity() {
+			return buf.length;
+		}
+
+		public void reserve(int size) {
+			// Grow at once to expected size instead of step by step while document is written
+
+			if (buf.length < size) {
+				buf = count == 0 ? new byte[size] : Arrays.copyOf(buf, size);
+			}
+		}
+
+		public void writeTo(Path path, boolean sync) throws IOException {
+			// Whole content is written at once, without copying or splitting it into small writes
+
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				ByteBuffer bb = ByteBuffer.wrap(buf, 0, count);
+
+				while (bb.hasRemaining()) {
+					channel.write(bb);
+				}
+
+				if (sync) {
+					channel.force(true);
+				}
+			}
+		}
+	}
+
+	private final BlockingQueue<Buffer> buffers;
+
+	private final int maxBufferSize;
+
+	public OutputBufferPool(int capacity, int maxBufferSize) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Argument value can't be less than 1!");
+		}
+
+		buffers = new ArrayBlockingQueue<>(capacity);
+
+		this.maxBufferSize = maxBufferSize;
+	}
+
+	public Buffer take(long sizeHint) {
+		int size = (int)Math.min(Integer.MAX_VALUE - 8, sizeHint + 65536);
+
+		Buffer buffer = buffers.poll();
+
+		if (buffer == null) {
+			return new Buffer(size);
+		}
+
+		buffer.reserve(size);
+
+		return buffer;
+	}
+
+	public void release(Buffer buffer) {
+		if (buffer.capacity() > maxBufferSize) {
+			return;
+		}
+
+		buffer.reset();
+
+		// Pool is full when more buffers were taken than it holds, extra ones are just dropped
+		buffers.offer(buffer);
+	}
+}
@@ -0,0 +1,108 @@
+package ru.axu.signer;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+
+public class OutputCommitter {
+	// Signed files are written under temporary name next to final one and renamed to final name only
+	// when completely written and synced, so partial files are never seen under final name.
+	// Renames become durable when their directory is synced, which is done once for a group of files
+
+	private final boolean sync;
+	private final int dirSyncInterval;
+
+	private Set<Path> pendingDirs;
+	private int pendingCount;
+
+	public OutputCommitter(boolean sync, int dirSyncInterval) {
+		if (dirSyncInterval < 1) {
+			throw new IllegalArgumentException("Argument value can't be less than 1!");
+		}
+
+		this.sync = sync;
+		this.dirSyncInterval = dirSyncInterval;
+
+		pendingDirs = new HashSet<>();
+		pendingCount = 0;
+	}
+
+	public static Path getTempPath(Path outPdfFilePath) {
+		return outPdfFilePath.resolveSibling("." + outPdfFilePath.getFileName() + ".tmp");
+	}
+
+	public void writeFile(Path tmpPath, OutputBufferPool.Buffer buffer) throws IOException {
+		buffer.writeTo(tmpPath, sync);
+	}
+
+	public void syncFile(Path tmpPath) throws IOException {
+		if (!sync) {
+			return;
+		}
+
+		try (FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+	}
+
+	public void commit(Path tmpPath, Path outPdfFilePath) throws IOException {
+		try {
+			Files.move(tmpPath, outPdfFilePath, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmpPath, outPdfFilePath, StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		if (!sync) {
+			return;
+		}
+
+		Set<Path> dirs = null;
+
+		synchronized (this) {
+			pendingDirs.add(outPdfFilePath.toAbsolutePath().getParent());
+
+			if (++pendingCount >= dirSyncInterval) {
+				dirs = takePendingDirs();
+			}
+		}
+
+		if (dirs != null) {
+			syncDirs(dirs);
+		}
+	}
+
+	public void flush() {
+		Set<Path> dirs;
+
+		synchronized (this) {
+			dirs = takePendingDirs();
+		}
+
+		syncDirs(dirs);
+	}
+
+	private Set<Path> takePendingDirs() {
+		Set<Path> dirs = pendingDirs;
+
+		pendingDirs = new HashSet<>();
+		pendingCount = 0;
+
+		return dirs;
+	}
+
+	private void syncDirs(Set<Path> dirs) {
+		for (Path dir : dirs) {
+			try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+				channel.force(true);
+			} catch (IOException e) {
+				// Directories can't be synced on some platforms (Windows), renames are durable there anyway
+			}
+		}
+	}
+}
@@ -0,0 +1,9 @@
+package ru.axu.signer;
+
+public class OutputException extends GeneralException {
+	// Failure to write target file or journal, which is not caused by source document itself
+
+	public OutputException(String message, Throwable reason) {
+		super(message, reason);
+	}
+}
@@ -0,0 +1,85 @@
+package ru.axu.signer;
+
+import com.itextpdf.io.font.PdfEncodings;
+import com.itextpdf.kernel.colors.DeviceRgb;
+import com.itextpdf.kernel.font.PdfFont;
+import com.itextpdf.kernel.font.PdfFontFactory;
+import com.itextpdf.kernel.pdf.PdfDocument;
+import com.itextpdf.kernel.pdf.extgstate.PdfExtGState;
+
+import java.awt.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class OverlayResources {
+	// Resources shared by stamp, watermark and copyright of one document. Each font is created
+	// once per document, so it is embedded once with single subset of glyphs used by all overlays.
+	// Transparency states are indirect objects, so all pages and forms refer to the same object
+
+	private final PdfDocument pdfDoc;
+
+	private final Map<String, PdfFont> fonts;
+	private final Map<Float, PdfExtGState> fillOpacityStates;
+	private final Map<Integer, DeviceRgb> colors;
+
+	public OverlayResources(PdfDocument pdfDoc) {
+		if (pdfDoc == null) {
+			throw new IllegalArgumentException("Argument value can't be null!");
+		}
+
+		this.pdfDoc = pdfDoc;
+
+		fonts = new HashMap<>();
+		fillOpacityStates = new HashMap<>();
+		colors = new HashMap<>();
+	}
+
+	public PdfDocument getDocument() {
+		return pdfDoc;
+	}
+
+	public PdfFont getFont(String fontName) throws Exception {
+		String fontKey = fontName.toLowerCase() + "|" + PdfEncodings.IDENTITY_H;
+
+		PdfFont font = fonts.get(fontKey);
+
+		if (font == null) {
+			try {
+				font = PdfFontFactory.createFont(FontProgramCache.getFontProgram(fontName), PdfEncodings.IDENTITY_H, PdfFontFactory.EmbeddingStrategy.FORCE_EMBEDDED);
+			} catch (Exception e) {
+				// Font which can't be loaded or embedded fails every document, not only this one
+				throw new ConfigException("Can't create PDF font with name \"" + fontName + "\"!", e);
+			}
+
+			fonts.put(fontKey, font);
+		}
+
+		return font;
+	}
+
+	public PdfExtGState getFillOpacityState(float fillOpacity) {
+		PdfExtGState gs = fillOpacityStates.get(fillOpacity);
+
+		if (gs == null) {
+			gs = new PdfExtGState().setFillOpacity(fillOpacity);
+			gs.getPdfObject().makeIndirect(pdfDoc);
+
+			fillOpacityStates.put(fillOpacity, gs);
+		}
+
+		return gs;
+	}
+
+	public DeviceRgb getColor(Color color) {
+		DeviceRgb rgb = colors.get(color.getRGB());
+
+		if (rgb == null) {
+			rgb = new DeviceRgb(color);
+
+			colors.put(color.getRGB(), rgb);
+		}
+
+		return rgb;
+	}
+}
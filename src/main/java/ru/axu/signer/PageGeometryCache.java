@@ -0,0 +1,124 @@
+package ru.axu.signer;
+
+public class PageGeometryCache {
+	// Watermark layout by page size, shared by all watermarks with the same settings and read by
+	// rendering threads without locking or allocation. Page height and width are packed into one long
+	// key, table uses open addressing and is copied on every change, which happens once per page size
+
+	public static class Geometry {
+		private final float fontSize;
+		private final float rotAngle;
+		private final float centerX;
+		private final float centerY;
+
+		public Geometry(float fontSize, float rotAngle, float centerX, float centerY) {
+			this.fontSize = fontSize;
+			this.rotAngle = rotAngle;
+			this.centerX = centerX;
+			this.centerY = centerY;
+		}
+
+		public float getFontSize() {
+			return fontSize;
+		}
+
+		public float getRotAngle() {
+			return rotAngle;
+		}
+
+		public float getCenterX() {
+			return centerX;
+		}
+
+		public float getCenterY() {
+			return centerY;
+		}
+	}
+
+	private static class Table {
+		private final long[] keys;
+		private final Geometry[] values;
+		private final int size;
+
+		private Table(int capacity, int size) {
+			keys = new long[capacity];
+			values = new Geometry[capacity];
+			this.size = size;
+		}
+	}
+
+	private volatile Table table;
+
+	public PageGeometryCache() {
+		table = new Table(16, 0);
+	}
+
+	public static long getKey(float pageHeight, float pageWidth) {
+		return ((long)Float.floatToIntBits(pageHeight) << 32) | (Float.floatToIntBits(pageWidth) & 0xFFFFFFFFL);
+	}
+
+	public Geometry get(long key) {
+		Table t = table;
+
+		int mask = t.keys.length - 1;
+
+		for (int i = hash(key) & mask; t.values[i] != null; i = (i + 1) & mask) {
+			if (t.keys[i] == key) {
+				return t.values[i];
+			}
+		}
+
+		return null;
+	}
+
+	public synchronized Geometry put(long key, Geometry geometry) {
+		// Returns geometry already stored by another thread, if there is one, so all users share the same object
+
+		Geometry existing = get(key);
+
+		if (existing != null) {
+			return existing;
+		}
+
+		Table t = table;
+
+		int capacity = t.keys.length;
+
+		if ((t.size + 1) * 2 > capacity) {
+			capacity *= 2;
+		}
+
+		Table newTable = new Table(capacity, t.size + 1);
+
+		for (int i = 0; i < t.keys.length; i++) {
+			if (t.values[i] != null) {
+				insert(newTable, t.keys[i], t.values[i]);
+			}
+		}
+
+		insert(newTable, key, geometry);
+
+		table = newTable;
+
+		return geometry;
+	}
+
+	private static void insert(Table t, long key, Geometry geometry) {
+		int mask = t.keys.length - 1;
+
+		int i = hash(key) & mask;
+
+		while (t.values[i] != null) {
+			i = (i + 1) & mask;
+		}
+
+		t.keys[i] = key;
+		t.values[i] = geometry;
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+
+		return (int)(h ^ (h >>> 32));
+	}
+}
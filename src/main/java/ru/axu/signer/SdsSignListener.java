@@ -0,0 +1,19 @@
+package ru.axu.signer;
+
+import java.nio.file.Path;
+
+public interface SdsSignListener {
+	// All methods may be called concurrently from signing worker threads
+
+	void documentStarted(Path srcPdfFilePath);
+
+	void documentSigned(Path srcPdfFilePath, Path outPdfFilePath);
+
+	void documentSkipped(Path srcPdfFilePath);
+
+	// Quarantine file path is null when source file was not moved to quarantine
+	void documentFailed(Path srcPdfFilePath, Path quarantineFilePath, Exception e);
+
+	// Called periodically while documents are in work and once more when batch is finished
+	void progressUpdated(SignStats stats);
+}
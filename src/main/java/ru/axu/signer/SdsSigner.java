@@ -0,0 +1,629 @@
+package ru.axu.signer;
+
+import com.itextpdf.io.source.RandomAccessSourceFactory;
+import com.itextpdf.kernel.pdf.CompressionConstants;
+import com.itextpdf.kernel.pdf.PdfDocument;
+import com.itextpdf.kernel.pdf.PdfPage;
+import com.itextpdf.kernel.pdf.PdfReader;
+import com.itextpdf.kernel.pdf.PdfWriter;
+import com.itextpdf.kernel.pdf.ReaderProperties;
+import com.itextpdf.kernel.pdf.StampingProperties;
+import com.itextpdf.kernel.pdf.WriterProperties;
+import org.bouncycastle.crypto.prng.RandomGenerator;
+import org.bouncycastle.util.encoders.Hex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.UUID;
+
+public class SdsSigner {
+	public interface SrcPdfFileVisitor {
+		// Returns false when walk must be stopped
+		boolean visit(Path srcPdfFilePath, BasicFileAttributes attrs) throws InterruptedException;
+	}
+
+	private static class TrackedOutputStream extends FilterOutputStream {
+		// Remembers failed write, so output errors can be told from errors of source document
+
+		private IOException failure;
+
+		private TrackedOutputStream(OutputStream out) {
+			super(out);
+
+			failure = null;
+		}
+
+		public IOException getFailure() {
+			return failure;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			try {
+				out.write(b);
+			} catch (IOException e) {
+				failure = e;
+				throw e;
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			try {
+				out.write(b, off, len);
+			} catch (IOException e) {
+				failure = e;
+				throw e;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			try {
+				out.flush();
+			} catch (IOException e) {
+				failure = e;
+				throw e;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				out.close();
+			} catch (IOException e) {
+				failure = e;
+				throw e;
+			}
+		}
+	}
+
+	private static class SrcPdfFileWalker extends SimpleFileVisitor<Path> {
+		private final SrcPdfFileVisitor visitor;
+
+		private long count;
+
+		private InterruptedException interrupted;
+
+		private SrcPdfFileWalker(SrcPdfFileVisitor visitor) {
+			this.visitor = visitor;
+
+			count = 0;
+			interrupted = null;
+		}
+
+		@Override
+		public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+			if (!path.getFileName().toString().toLowerCase().endsWith(".pdf")) {
+				return FileVisitResult.CONTINUE;
+			}
+
+			// Links are not followed by the walk, so attributes of link target are read separately
+
+			if (attrs.isSymbolicLink()) {
+				try {
+					attrs = Files.readAttributes(path, BasicFileAttributes.class);
+				} catch (IOException e) {
+					// Broken link
+					return FileVisitResult.CONTINUE;
+				}
+			}
+
+			if (!attrs.isRegularFile()) {
+				return FileVisitResult.CONTINUE;
+			}
+
+			count++;
+
+			try {
+				return visitor.visit(path, attrs) ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+			} catch (InterruptedException e) {
+				interrupted = e;
+				return FileVisitResult.TERMINATE;
+			}
+		}
+	}
+
+	private final Config config;
+	private final SdsKeyEntity keyEntity;
+	private final RandomGenerator secureRandom;
+
+	private int threads;
+
+	private boolean force;
+
+	private Path quarantinePath;
+
+	private final String profileHash;
+
+	private final WatermarkTemplateCache watermarkTemplateCache;
+
+	private final PageGeometryCache watermarkGeometryCache;
+
+	public SdsSigner(Config config, SdsKeyEntity keyEntity, RandomGenerator secureRandom) {
+		if (config == null || keyEntity == null || secureRandom == null) {
+			throw new IllegalArgumentException("Argument value can't be null!");
+		}
+
+		// Config and key entity are shared read-only between all workers,
+		// secure random source is synchronized internally
+
+		this.config = config;
+		this.keyEntity = keyEntity;
+		this.secureRandom = secureRandom;
+
+		threads = config.getSignThreads() > 0 ? config.getSignThreads() : Runtime.getRuntime().availableProcessors();
+
+		force = false;
+
+		quarantinePath = config.getQuarantineDir().isEmpty() ? null : new File(config.getQuarantineDir()).toPath();
+
+		// Signed files have to be re-signed when any setting or key changes
+
+		profileHash = SignState.calcDigest((config.getProfileString() + "|" + keyEntity.getEntityId().toString()).getBytes(StandardCharsets.UTF_8));
+
+		watermarkTemplateCache = new WatermarkTemplateCache();
+
+		watermarkGeometryCache = new PageGeometryCache();
+
+		// Register fonts before any worker is started, so workers never race on it
+
+		FontRegistry.init(config);
+
+		FontProgramCache.setMaxSize(config.getFontsCacheSize());
+	}
+
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Argument value can't be less than 1!");
+		}
+
+		this.threads = threads;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setForce(boolean force) {
+		this.force = force;
+	}
+
+	public boolean getForce() {
+		return force;
+	}
+
+	public void setQuarantinePath(Path quarantinePath) {
+		// Null value disables quarantine, failed source files are left in place
+		this.quarantinePath = quarantinePath;
+	}
+
+	public Path getQuarantinePath() {
+		return quarantinePath;
+	}
+
+	public Config getConfig() {
+		return config;
+	}
+
+	public String getProfileHash() {
+		return profileHash;
+	}
+
+	public boolean signAll(Path inPath, Path outPath, SdsSignListener listener) throws InterruptedException, GeneralException {
+		SignPipeline pipeline = new SignPipeline(this, inPath, outPath, listener);
+
+		pipeline.start();
+
+		// Source files are submitted while directory is still walked, so signing starts at once and
+		// file list is never kept in memory. Total number of files is known only when walk is over
+
+		long srcFiles;
+
+		try {
+			srcFiles = walkSrcPdfFiles(inPath, (srcPdfFilePath, attrs) -> {
+				pipeline.submit(srcPdfFilePath, attrs);
+				return true;
+			});
+		} catch (InterruptedException e) {
+			pipeline.abort();
+			throw e;
+		} catch (IOException e) {
+			pipeline.finish(false);
+			throw new GeneralException("Can't get list of source PDF files!", e);
+		}
+
+		pipeline.getStats().setTotalFiles(srcFiles);
+
+		return pipeline.finish(true);
+	}
+
+	public void warmUp(int rounds) throws GeneralException {
+		// Sign blank in-memory document a few times, so fonts are loaded and hot code
+		// is compiled before the first real document arrives
+
+		byte[] blankPdfBytes = createBlankPdf();
+
+		for (int i = 0; i < rounds; i++) {
+			signDocument(blankPdfBytes, null);
+		}
+	}
+
+	public void checkOverlays() throws GeneralException {
+		// All overlays are placed once on blank document before any source file is touched,
+		// so missing font or bad setting stops the batch instead of failing every document
+
+		try {
+			signDocument(createBlankPdf(), null);
+		} catch (GeneralException e) {
+			throw new ConfigException("Can't place overlays with current settings!", e);
+		}
+	}
+
+	private static byte[] createBlankPdf() {
+		ByteArrayOutputStream blankPdfStream = new ByteArrayOutputStream();
+
+		PdfDocument blankDoc = new PdfDocument(new PdfWriter(blankPdfStream));
+		blankDoc.addNewPage();
+		blankDoc.close();
+
+		return blankPdfStream.toByteArray();
+	}
+
+	public static boolean hasSrcPdfFiles(Path inPath) throws IOException {
+		// Walk stops at the first source PDF file found
+
+		try {
+			return walkSrcPdfFiles(inPath, (srcPdfFilePath, attrs) -> false) > 0;
+		} catch (InterruptedException e) {
+			// Visitor never waits, so walk can't be interrupted
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	public static long walkSrcPdfFiles(Path inPath, SrcPdfFileVisitor visitor) throws IOException, InterruptedException {
+		// Visit all source PDF files in directory and its subdirectories with attributes read by the walk itself,
+		// returns number of visited files
+
+		SrcPdfFileWalker walker = new SrcPdfFileWalker(visitor);
+
+		Files.walkFileTree(inPath, walker);
+
+		if (walker.interrupted != null) {
+			throw walker.interrupted;
+		}
+
+		return walker.count;
+	}
+
+	public Path getOutPdfFilePath(Path inPath, Path srcPdfFilePath, Path outPath) {
+		// Keep subdirectory structure of source files, so equally named files never share one output
+
+		String inPdfStrFile = srcPdfFilePath.getFileName().toString();
+		Path relDirPath = inPath.relativize(srcPdfFilePath).getParent();
+
+		Path outDirPath = relDirPath == null ? outPath : outPath.resolve(relDirPath);
+
+		return outDirPath.resolve(inPdfStrFile.substring(0, inPdfStrFile.lastIndexOf('.')) + ".signed.pdf");
+	}
+
+	public boolean isInputMapped(Path srcPdfFilePath, long srcSize) {
+		// Big local files are mapped into memory instead of being read into heap
+
+		long mmapMinSize = (long)config.getInputMmapMinSize() * 1024 * 1024;
+
+		return mmapMinSize > 0 && srcSize >= mmapMinSize && !InputSource.isNetworkPath(srcPdfFilePath);
+	}
+
+	public void signDocument(Path srcPdfFilePath, OutputStream outPdfStream, SignStats stats) throws GeneralException {
+		// Target stream is closed when document is written, partially written target is left to caller
+
+		PdfReader reader;
+
+		try {
+			reader = new PdfReader(InputSource.open(srcPdfFilePath, config.getInputMmapMinSize() > 0), new ReaderProperties());
+		} catch (Exception e) {
+			throw new GeneralException("Can't open source PDF file!", e);
+		}
+
+		TrackedOutputStream trackedOutPdfStream = new TrackedOutputStream(outPdfStream);
+
+		try {
+			signDocument(reader, new PdfWriter(trackedOutPdfStream, getWriterProperties()), stats);
+		} catch (GeneralException e) {
+			// Failed write to target file is not a problem of source document
+
+			if (trackedOutPdfStream.getFailure() != null) {
+				throw new OutputException("Can't write target PDF file!", e);
+			}
+
+			throw e;
+		}
+	}
+
+	public byte[] signDocument(byte[] srcPdfBytes, SignStats stats) throws GeneralException {
+		ByteArrayOutputStream outPdfStream = new ByteArrayOutputStream(srcPdfBytes.length + 65536);
+
+		signDocument(srcPdfBytes, outPdfStream, stats);
+
+		return outPdfStream.toByteArray();
+	}
+
+	public void signDocument(byte[] srcPdfBytes, OutputStream outPdfStream, SignStats stats) throws GeneralException {
+		PdfReader reader;
+
+		try {
+			// Wrap source bytes without copying them again
+			reader = new PdfReader(new RandomAccessSourceFactory().createSource(srcPdfBytes), new ReaderProperties());
+		} catch (Exception e) {
+			throw new GeneralException("Can't open source PDF data!", e);
+		}
+
+		signDocument(reader, new PdfWriter(outPdfStream, getWriterProperties()), stats);
+	}
+
+	private void signDocument(PdfReader reader, PdfWriter writer, SignStats stats) throws GeneralException {
+		PdfDocument pdfDoc;
+
+		try {
+			// Append mode keeps source bytes as they are and adds only new objects as incremental update
+
+			StampingProperties stampingProps = new StampingProperties();
+
+			if (config.getOutputMode().equals("append")) {
+				stampingProps.useAppendMode();
+			}
+
+			pdfDoc = new PdfDocument(reader, writer, stampingProps);
+		} catch (Exception e) {
+			closeQuietly(reader, writer);
+			throw new GeneralException("Can't open source PDF document!", e);
+		}
+
+		boolean closed = false;
+
+		try {
+			placeOverlays(pdfDoc);
+
+			int pageCount = pdfDoc.getNumberOfPages();
+
+			pdfDoc.close();
+
+			closed = true;
+
+			if (stats != null) {
+				stats.addPages(pageCount);
+			}
+		} catch (GeneralException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new GeneralException("Error writing target PDF document!", e);
+		} finally {
+			if (!closed) {
+				// Release source file and target stream of failed document without writing anything more
+				closeQuietly(reader, writer);
+			}
+		}
+	}
+
+	private WriterProperties getWriterProperties() {
+		// Compression level applies to new and rewritten streams, full compression also packs objects
+		// into object streams with cross-reference stream, smart mode writes identical objects once
+
+		WriterProperties writerProps = new WriterProperties();
+
+		switch (config.getOutputCompression()) {
+			case "fast":
+				writerProps.setCompressionLevel(CompressionConstants.BEST_SPEED);
+				break;
+			case "max":
+				writerProps.setCompressionLevel(CompressionConstants.BEST_COMPRESSION);
+				writerProps.setFullCompressionMode(true);
+				writerProps.useSmartMode();
+				break;
+			default:
+				writerProps.setCompressionLevel(CompressionConstants.DEFAULT_COMPRESSION);
+				writerProps.setFullCompressionMode(true);
+		}
+
+		return writerProps;
+	}
+
+	private void closeQuietly(PdfReader reader, PdfWriter writer) {
+		try {
+			reader.close();
+		} catch (Exception e) {
+			// Nothing to do, document is failed anyway
+		}
+
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (Exception e) {
+				// Nothing to do, document is failed anyway
+			}
+		}
+	}
+
+	private void placeOverlays(PdfDocument pdfDoc) throws GeneralException {
+		OverlayResources overlayRes = new OverlayResources(pdfDoc);
+
+		// Prepare simple digital signature stamp for first page
+
+		SdsStamp stamp = new SdsStamp();
+
+		stamp.setStampPosition(config.getStampPosition());
+
+		stamp.setSignerText(keyEntity.getPersonText());
+		stamp.setPosText(keyEntity.getPositionText());
+
+		LocalDateTime dateTimeNow = LocalDateTime.now();
+
+		stamp.setDateTime(dateTimeNow);
+
+		stamp.setKeyIdText(keyEntity.getEntityId().toString());
+
+		if (config.getStampMacEnable()) {
+			byte[] docIdBytes = new byte[16];
+			secureRandom.nextBytes(docIdBytes);
+			UUID docId = MiscUtils.getUuidFromByteArray(docIdBytes);
+
+			stamp.setDocIdText(docId.toString());
+
+			stamp.setMacText(Hex.toHexString(calcStampMac(dateTimeNow, docIdBytes)));
+		}
+
+		try {
+			stamp.setFontColor(config.getStampFontColor());
+			stamp.setFontName(config.getStampFontName());
+			stamp.setFontSize(config.getStampFontSize());
+
+			stamp.setBorderColor(config.getStampBorderColor());
+			stamp.setBorderWidth(config.getStampBorderWidth());
+
+			stamp.setMarginLr(config.getStampMarginLr());
+			stamp.setMarginTb(config.getStampMarginTb());
+			stamp.setPadding(config.getStampPadding());
+
+			stamp.setMacEnable(config.getStampMacEnable());
+
+			stamp.setDirectText(config.getOverlayTextRender().equals("direct"));
+		} catch (Exception e) {
+			throw new ConfigException("Error setting stamp attributes!", e);
+		}
+
+		// Prepare watermark for every page
+
+		Watermark watermark = null;
+
+		if (!config.getWatermarkText().isEmpty()) {
+			watermark = new Watermark();
+
+			watermark.setText(config.getWatermarkText());
+
+			watermark.setTemplateCache(watermarkTemplateCache);
+			watermark.setGeometryCache(watermarkGeometryCache);
+
+			try {
+				watermark.setFontColor(config.getWatermarkFontColor());
+				watermark.setFontName(config.getWatermarkFontName());
+				watermark.setFontMaxSize(config.getWatermarkFontMaxSize());
+
+				watermark.setTransparency(config.getWatermarkTransparency());
+
+				watermark.setOffset(config.getWatermarkOffset());
+
+				watermark.setFlip(config.getWatermarkFlip());
+			} catch (Exception e) {
+				throw new ConfigException("Error setting watermark attributes!", e);
+			}
+		}
+
+		// Prepare copyright for last page
+
+		int pageCount = pdfDoc.getNumberOfPages();
+
+		Copyright copyright = null;
+
+		if (!config.getCopyrightDisable()) {
+			copyright = new Copyright();
+
+			copyright.setPosLeft(pageCount == 1 && config.getStampPosition() == StampPosition.BOTTOM_RIGHT);
+
+			copyright.setDirectText(config.getOverlayTextRender().equals("direct"));
+
+			try {
+				copyright.setLine3text(config.getCopyrightLine3Text());
+
+				copyright.setFontColor(config.getCopyrightFontColor());
+				copyright.setFontName(config.getCopyrightFontName());
+				copyright.setFontSize(config.getCopyrightFontSize());
+			} catch (Exception e) {
+				throw new ConfigException("Error setting copyright attributes!", e);
+			}
+		}
+
+		// Pages of long documents are written out as soon as all their overlays are placed, so memory
+		// does not grow with page count. Fonts and shared watermark forms stay until document is closed
+
+		int streamPagesMin = config.getStreamPagesMin();
+
+		boolean streamPages = streamPagesMin > 0 && pageCount >= streamPagesMin;
+
+		for (int i = 1; i <= pageCount; i++) {
+			PdfPage page = pdfDoc.getPage(i);
+
+			if (i == 1) {
+				try {
+					stamp.placeStamp(page, 1, overlayRes);
+				} catch (ConfigException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new GeneralException("Error placing stamp!", e);
+				}
+			}
+
+			if (watermark != null) {
+				try {
+					watermark.placeWatermark(page, i, overlayRes);
+				} catch (ConfigException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new GeneralException("Error placing watermark on page " + i + "!", e);
+				}
+			}
+
+			if (copyright != null && i == pageCount) {
+				try {
+					copyright.placeCopyright(page, pageCount, overlayRes);
+				} catch (ConfigException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new GeneralException("Error placing copyright!", e);
+				}
+			}
+
+			if (streamPages) {
+				try {
+					page.flush();
+				} catch (Exception e) {
+					throw new GeneralException("Error writing page " + i + " of target PDF document!", e);
+				}
+			}
+		}
+	}
+
+	private byte[] calcStampMac(LocalDateTime dateTime, byte[] docIdBytes) {
+		byte[] personBytes = keyEntity.getPersonText().getBytes(StandardCharsets.UTF_16);
+		byte[] positionBytes = keyEntity.getPositionText().getBytes(StandardCharsets.UTF_16);
+
+		byte[] entityIdBytes = MiscUtils.getByteArrayFromUuid(keyEntity.getEntityId());
+
+		ByteBuffer bb = ByteBuffer.allocate(1024);
+
+		bb.put(personBytes);
+		bb.put(positionBytes);
+		bb.putLong(dateTime.toEpochSecond(ZoneOffset.UTC));
+		bb.put(entityIdBytes);
+		bb.put(docIdBytes);
+
+		bb.flip();
+		byte[] plainForMacBytes = new byte[bb.remaining()];
+		bb.get(plainForMacBytes);
+
+		return keyEntity.calcMessageMac(plainForMacBytes);
+	}
+}
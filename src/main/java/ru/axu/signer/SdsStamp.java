@@ -1,9 +1,6 @@
 package ru.axu.signer;
 
-import com.itextpdf.io.font.PdfEncodings;
-import com.itextpdf.kernel.colors.DeviceRgb;
 import com.itextpdf.kernel.font.PdfFont;
-import com.itextpdf.kernel.font.PdfFontFactory;
 import com.itextpdf.kernel.pdf.PdfPage;
 import com.itextpdf.kernel.pdf.canvas.PdfCanvas;
 import com.itextpdf.layout.Canvas;
@@ -12,7 +9,6 @@ import com.itextpdf.layout.property.TextAlignment;
 import com.itextpdf.layout.property.VerticalAlignment;
 
 import java.awt.*;
-import java.io.IOException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 
@@ -40,6 +36,8 @@ public class SdsStamp {
 
 	private boolean macEnable;
 
+	private boolean directText;
+
 	public SdsStamp() {
 		signerText = "Фамилия Имя Отчество";
 		posText = "должность";
@@ -57,8 +55,7 @@ public class SdsStamp {
 		marginLr = 10;
 		padding = 10;
 		macEnable = true;
-
-		PdfUtils.registerSystemFontsOnce();
+		directText = false;
 	}
 
 	public void setSignerText(String signerText) {
@@ -185,14 +182,12 @@ public class SdsStamp {
 		this.macEnable = macEnable;
 	}
 
-	public void placeStamp(PdfPage pdfPage, int pageNumber) throws Exception {
-		PdfFont font = null;
+	public void setDirectText(boolean directText) {
+		this.directText = directText;
+	}
 
-		try {
-			font = PdfFontFactory.createRegisteredFont(fontName, PdfEncodings.IDENTITY_H, PdfFontFactory.EmbeddingStrategy.FORCE_EMBEDDED);
-		} catch (IOException e) {
-			throw new Exception("Can't create PDF font with name \"" + fontName + "\"");
-		}
+	public void placeStamp(PdfPage pdfPage, int pageNumber, OverlayResources overlayRes) throws Exception {
+		PdfFont font = overlayRes.getFont(fontName);
 
 		float pageHeight = pdfPage.getPageSize().getHeight();
 		float pageWidth = pdfPage.getPageSize().getWidth();
@@ -211,15 +206,28 @@ public class SdsStamp {
 		String resDocIdText = "Документ: " + docIdText;
 		String resMacText = "Имитовставка: " + macText;
 
-		signMaxWidth = Math.max(signMaxWidth, font.getWidth(resSignedText, fontSize));
-		signMaxWidth = Math.max(signMaxWidth, font.getWidth(resSignerText, fontSize));
-		signMaxWidth = Math.max(signMaxWidth, font.getWidth(resPosText, fontSize));
-		signMaxWidth = Math.max(signMaxWidth, font.getWidth(resDateText, fontSize));
-		signMaxWidth = Math.max(signMaxWidth, font.getWidth(resKeyIdText, fontSize));
+		// Each line is measured once, widths are used both for stamp size and for drawing lines
+
+		float resSignedWidth = font.getWidth(resSignedText, fontSize);
+		float resSignerWidth = font.getWidth(resSignerText, fontSize);
+		float resPosWidth = font.getWidth(resPosText, fontSize);
+		float resDateWidth = font.getWidth(resDateText, fontSize);
+		float resKeyIdWidth = font.getWidth(resKeyIdText, fontSize);
+		float resDocIdWidth = 0.0f;
+		float resMacWidth = 0.0f;
+
+		signMaxWidth = Math.max(signMaxWidth, resSignedWidth);
+		signMaxWidth = Math.max(signMaxWidth, resSignerWidth);
+		signMaxWidth = Math.max(signMaxWidth, resPosWidth);
+		signMaxWidth = Math.max(signMaxWidth, resDateWidth);
+		signMaxWidth = Math.max(signMaxWidth, resKeyIdWidth);
 
 		if (macEnable) {
-			signMaxWidth = Math.max(signMaxWidth, font.getWidth(resDocIdText, fontSize));
-			signMaxWidth = Math.max(signMaxWidth, font.getWidth(resMacText, fontSize));
+			resDocIdWidth = font.getWidth(resDocIdText, fontSize);
+			resMacWidth = font.getWidth(resMacText, fontSize);
+
+			signMaxWidth = Math.max(signMaxWidth, resDocIdWidth);
+			signMaxWidth = Math.max(signMaxWidth, resMacWidth);
 		}
 
 		int linesCount = 5;
@@ -231,7 +239,7 @@ public class SdsStamp {
 		float stampHeight = padding + ((fontSize * linesCount) + ((fontSize / 2) * (linesCount - 1))) + padding;
 		float stampWidth = padding + signMaxWidth + padding;
 
-		pageCanvas.setStrokeColor(new DeviceRgb(borderColor));
+		pageCanvas.setStrokeColor(overlayRes.getColor(borderColor));
 		pageCanvas.setLineWidth(borderWidth);
 
 		switch (stampPosition) {
@@ -273,44 +281,53 @@ public class SdsStamp {
 				break;
 		}
 
-		pageCanvas.setFillColor(new DeviceRgb(fontColor));
+		pageCanvas.setFillColor(overlayRes.getColor(fontColor));
+
+		// Layout canvas is not needed when lines are drawn directly
 
-		Canvas signatureCvs = new Canvas(pageCanvas, pdfPage.getPageSize());
+		Canvas signatureCvs = directText ? null : new Canvas(pageCanvas, pdfPage.getPageSize());
 
-		printStampText(signatureCvs, pageNumber, font, textPosX, textPoxY, resSignedText);
+		printStampText(pageCanvas, signatureCvs, pageNumber, font, textPosX, textPoxY, resSignedText, resSignedWidth);
 
 		textPoxY -= fontSize + (fontSize / 2);
 
-		printStampText(signatureCvs, pageNumber, font, textPosX, textPoxY, resSignerText);
+		printStampText(pageCanvas, signatureCvs, pageNumber, font, textPosX, textPoxY, resSignerText, resSignerWidth);
 
 		textPoxY -= fontSize + (fontSize / 2);
 
-		printStampText(signatureCvs, pageNumber, font, textPosX, textPoxY, resPosText);
+		printStampText(pageCanvas, signatureCvs, pageNumber, font, textPosX, textPoxY, resPosText, resPosWidth);
 
 		textPoxY -= fontSize + (fontSize / 2);
 
-		printStampText(signatureCvs, pageNumber, font, textPosX, textPoxY, resDateText);
+		printStampText(pageCanvas, signatureCvs, pageNumber, font, textPosX, textPoxY, resDateText, resDateWidth);
 
 		textPoxY -= fontSize + (fontSize / 2);
 
-		printStampText(signatureCvs, pageNumber, font, textPosX, textPoxY, resKeyIdText);
+		printStampText(pageCanvas, signatureCvs, pageNumber, font, textPosX, textPoxY, resKeyIdText, resKeyIdWidth);
 
 		if (macEnable) {
 			textPoxY -= fontSize + (fontSize / 2);
 
-			printStampText(signatureCvs, pageNumber, font, textPosX, textPoxY, resDocIdText);
+			printStampText(pageCanvas, signatureCvs, pageNumber, font, textPosX, textPoxY, resDocIdText, resDocIdWidth);
 
 			textPoxY -= fontSize + (fontSize / 2);
 
-			printStampText(signatureCvs, pageNumber, font, textPosX, textPoxY, resMacText);
+			printStampText(pageCanvas, signatureCvs, pageNumber, font, textPosX, textPoxY, resMacText, resMacWidth);
 		}
 
-		signatureCvs.close();
+		if (signatureCvs != null) {
+			signatureCvs.close();
+		}
 
 		pageCanvas.restoreState();
 	}
 
-	private void printStampText(Canvas canvas, int pageNumber, PdfFont font, float posX, float posY, String text) {
+	private void printStampText(PdfCanvas pageCanvas, Canvas canvas, int pageNumber, PdfFont font, float posX, float posY, String text, float textWidth) {
+		if (directText) {
+			DirectText.showTextTop(pageCanvas, font, fontSize, posX, posY, TextAlignment.LEFT, text, textWidth);
+			return;
+		}
+
 		Paragraph par = new Paragraph(text).setFont(font).setFontSize(fontSize);
 		canvas.showTextAligned(par, posX, posY, pageNumber, TextAlignment.LEFT, VerticalAlignment.TOP, 0);
 	}
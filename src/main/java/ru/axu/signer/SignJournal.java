@@ -0,0 +1,180 @@
+package ru.axu.signer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+public class SignJournal {
+	// Append-only journal of documents in work. Start record is written before target file is touched,
+	// commit record after target file is completely written. After a crash, targets of started but
+	// not committed documents are half-written and removed, committed documents are skipped on restart.
+	// Records are written unbuffered, so they survive JVM crash without waiting for full batch.
+	// Long-running pipeline compacts journal after each state save, keeping only documents in work
+
+	private static final String RECORD_START = "S";
+	private static final String RECORD_COMMIT = "C";
+
+	private final File journalFile;
+
+	private FileOutputStream out;
+
+	// Target paths of started but not committed documents by key
+	private final Map<String, String> startedKeys;
+
+	private int committedCount;
+
+	public SignJournal(File journalFile) {
+		if (journalFile == null) {
+			throw new IllegalArgumentException("Argument value can't be null!");
+		}
+
+		this.journalFile = journalFile;
+
+		out = null;
+
+		startedKeys = new HashMap<>();
+
+		committedCount = 0;
+	}
+
+	public File getJournalFile() {
+		return journalFile;
+	}
+
+	public int recover(SignState state, Path outPath) throws GeneralException {
+		// Replay journal left by previous run, returns number of committed documents passed to state
+
+		if (!journalFile.exists()) {
+			return 0;
+		}
+
+		Map<String, String> startedKeys = new HashMap<>();
+		Map<String, SignState.Entry> committedKeys = new HashMap<>();
+
+		try (BufferedReader in = Files.newBufferedReader(journalFile.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+
+			while ((line = in.readLine()) != null) {
+				String[] parts = line.split("\t");
+
+				if (parts.length == 3 && parts[0].equals(RECORD_START)) {
+					startedKeys.put(parts[1], parts[2]);
+					committedKeys.remove(parts[1]);
+				} else if (parts.length == 6 && parts[0].equals(RECORD_COMMIT)) {
+					startedKeys.remove(parts[5]);
+					committedKeys.put(parts[5], new SignState.Entry(parts[1], parts[2], Long.parseLong(parts[3]), Long.parseLong(parts[4])));
+				}
+
+				// Last line may be cut by crash, it is just ignored
+			}
+		} catch (Exception e) {
+			throw new GeneralException("Can't read journal file \"" + journalFile.getAbsolutePath() + "\"!", e);
+		}
+
+		for (String outRelPath : startedKeys.values()) {
+			try {
+				Files.deleteIfExists(OutputCommitter.getTempPath(outPath.resolve(outRelPath)));
+				Files.deleteIfExists(outPath.resolve(outRelPath));
+			} catch (IOException e) {
+				throw new GeneralException("Can't remove half-written file \"" + outPath.resolve(outRelPath) + "\"!", e);
+			}
+		}
+
+		for (Map.Entry<String, SignState.Entry> e : committedKeys.entrySet()) {
+			state.put(e.getKey(), e.getValue());
+		}
+
+		return committedKeys.size();
+	}
+
+	public void open() throws GeneralException {
+		try {
+			out = new FileOutputStream(journalFile, true);
+		} catch (IOException e) {
+			throw new GeneralException("Can't open journal file \"" + journalFile.getAbsolutePath() + "\"!", e);
+		}
+	}
+
+	public synchronized void logStart(String key, String outRelPath) throws IOException {
+		writeRecord(getStartRecord(key, outRelPath));
+
+		startedKeys.put(key, outRelPath);
+	}
+
+	public synchronized void logCommit(String key, SignState.Entry entry) throws IOException {
+		writeRecord(RECORD_COMMIT + "\t" + entry.getDigest() + "\t" + entry.getProfile() + "\t" + entry.getSize() + "\t" + entry.getMtime() + "\t" + key);
+
+		startedKeys.remove(key);
+
+		committedCount++;
+	}
+
+	public synchronized void logDiscard(String key) {
+		// Target of failed document is already removed, so there is nothing to recover for it
+		startedKeys.remove(key);
+	}
+
+	public synchronized void compact() throws GeneralException {
+		// Committed documents are in saved state now, so only start records of documents in work are kept.
+		// New journal replaces old one atomically, so crash at any point leaves one of them complete
+
+		if (committedCount == 0) {
+			return;
+		}
+
+		Path tmpPath = new File(journalFile.getPath() + ".tmp").toPath();
+
+		try {
+			try (BufferedWriter tmpOut = Files.newBufferedWriter(tmpPath, StandardCharsets.UTF_8)) {
+				for (Map.Entry<String, String> e : startedKeys.entrySet()) {
+					tmpOut.write(getStartRecord(e.getKey(), e.getValue()) + "\n");
+				}
+			}
+
+			// Open file can't be replaced on some platforms (Windows)
+
+			out.close();
+
+			try {
+				Files.move(tmpPath, journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				out = new FileOutputStream(journalFile, true);
+			}
+
+			committedCount = 0;
+		} catch (IOException e) {
+			throw new GeneralException("Can't compact journal file \"" + journalFile.getAbsolutePath() + "\"!", e);
+		}
+	}
+
+	public void close(boolean delete) throws GeneralException {
+		try {
+			if (out != null) {
+				out.close();
+				out = null;
+			}
+
+			if (delete) {
+				Files.deleteIfExists(journalFile.toPath());
+			}
+		} catch (IOException e) {
+			throw new GeneralException("Can't close journal file \"" + journalFile.getAbsolutePath() + "\"!", e);
+		}
+	}
+
+	private String getStartRecord(String key, String outRelPath) {
+		return RECORD_START + "\t" + key + "\t" + outRelPath;
+	}
+
+	private void writeRecord(String record) throws IOException {
+		out.write((record + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,704 @@
+package ru.axu.signer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+public class SignPipeline {
+	// Documents flow through stages connected by bounded queues:
+	// discover (caller of submit) -> read -> render -> write.
+	// Full queues block the previous stage, so at most a fixed number of documents is kept in memory
+
+	private static class Job {
+		private final Path srcPdfFilePath;
+		private final Path outPdfFilePath;
+
+		private String stateKey;
+		private long srcSize;
+		private long srcMtime;
+		private String srcDigest;
+
+		private boolean outStarted;
+
+		private byte[] srcBytes;
+		private OutputBufferPool.Buffer outBuffer;
+		private WriteBehindOutputStream outStream;
+
+		private Job(Path srcPdfFilePath, Path outPdfFilePath) {
+			this.srcPdfFilePath = srcPdfFilePath;
+			this.outPdfFilePath = outPdfFilePath;
+		}
+	}
+
+	private interface Stage {
+		// Returns false when job is completed and must not be passed to the next stage
+		boolean process(Job job) throws Exception;
+	}
+
+	private static final Job END = new Job(null, null);
+
+	// Big documents are written by I/O threads in chunks while they are rendered
+	private static final int WRITE_BEHIND_CHUNK_SIZE = 1024 * 1024;
+	private static final int WRITE_BEHIND_CHUNKS = 4;
+
+	private final SdsSigner signer;
+	private final Path inPath;
+	private final Path outPath;
+	private final SdsSignListener listener;
+
+	private final boolean stateEnable;
+
+	private SignState state;
+	private SignJournal journal;
+
+	private final int readers;
+	private final int renderers;
+	private final int writers;
+
+	private final long bufferMaxSize;
+
+	private final OutputBufferPool outBufferPool;
+
+	private final OutputCommitter outCommitter;
+
+	private final BlockingQueue<Job> readQueue;
+	private final BlockingQueue<Job> renderQueue;
+	private final BlockingQueue<Job> writeQueue;
+
+	private final List<Thread> threads;
+
+	private final BlockingQueue<WriteBehindOutputStream> drainQueue;
+	private final List<Thread> drainThreads;
+
+	private final AtomicBoolean failed;
+
+	// First error not caused by source document, which stops the whole batch
+	private final AtomicReference<GeneralException> batchError;
+
+	private final SignStats stats;
+
+	private final long progressInterval;
+
+	private Thread reporterThread;
+
+	private long settleMs;
+
+	private Consumer<Path> unsettledHandler;
+
+	private final Set<String> handedBackFiles;
+
+	public SignPipeline(SdsSigner signer, Path inPath, Path outPath, SdsSignListener listener) {
+		if (signer == null || inPath == null || outPath == null || listener == null) {
+			throw new IllegalArgumentException("Argument value can't be null!");
+		}
+
+		this.signer = signer;
+		this.inPath = inPath;
+		this.outPath = outPath;
+		this.listener = listener;
+
+		Config config = signer.getConfig();
+
+		stateEnable = config.getStateEnable();
+
+		state = null;
+		journal = null;
+
+		readers = config.getPipelineReaders();
+		renderers = signer.getThreads();
+		writers = config.getPipelineWriters();
+
+		bufferMaxSize = (long)config.getPipelineBufferMaxSize() * 1024 * 1024;
+
+		// Each renderer and writer holds at most one output buffer, the rest wait in write queue
+
+		outBufferPool = new OutputBufferPool(renderers + writers + config.getPipelineQueueSize(), config.getPipelineBufferPoolMaxSize() * 1024);
+
+		outCommitter = new OutputCommitter(config.getOutputSync(), config.getOutputSyncDirsInterval());
+
+		readQueue = new ArrayBlockingQueue<>(config.getPipelineQueueSize());
+		renderQueue = new ArrayBlockingQueue<>(config.getPipelineQueueSize());
+		writeQueue = new ArrayBlockingQueue<>(config.getPipelineQueueSize());
+
+		threads = new ArrayList<>();
+
+		drainQueue = new LinkedBlockingQueue<>();
+		drainThreads = new ArrayList<>();
+
+		failed = new AtomicBoolean(false);
+
+		batchError = new AtomicReference<>(null);
+
+		stats = new SignStats();
+
+		progressInterval = config.getProgressInterval();
+
+		reporterThread = null;
+
+		settleMs = 0;
+
+		unsettledHandler = null;
+
+		handedBackFiles = ConcurrentHashMap.newKeySet();
+	}
+
+	public SignStats getStats() {
+		return stats;
+	}
+
+	public void setUnsettledHandler(long settleMs, Consumer<Path> unsettledHandler) {
+		// Failed source file may still be written by someone, when copy pauses longer than settle time.
+		// It is handed back to handler instead of being quarantined when it was changed or modified less
+		// than settle time ago, and in any case once for the same size and modification time
+
+		this.settleMs = settleMs;
+		this.unsettledHandler = unsettledHandler;
+	}
+
+	public void start() throws GeneralException {
+		signer.checkOverlays();
+
+		// Load state of previous runs and finish recovery after crash, if there was one
+
+		SignState loadedState = new SignState(outPath.resolve(".axusigner.state").toFile());
+
+		if (stateEnable) {
+			loadedState.load();
+		}
+
+		journal = new SignJournal(outPath.resolve(".axusigner.journal").toFile());
+
+		int recoveredCount = journal.recover(loadedState, outPath);
+
+		// Without persistent state, state is only used to skip documents committed before crash
+
+		state = stateEnable || recoveredCount > 0 ? loadedState : null;
+
+		journal.open();
+
+		startStage("read", readers, readQueue, renderQueue, renderers, stats.getReadTimer(), this::readJob);
+		startStage("render", renderers, renderQueue, writeQueue, writers, stats.getRenderTimer(), this::renderJob);
+		startStage("write", writers, writeQueue, null, 0, stats.getWriteTimer(), this::writeJob);
+
+		// Each renderer has at most one document written behind, so its chunks are always taken at once
+
+		for (int i = 1; i <= renderers; i++) {
+			Thread t = new Thread(this::drainOutputs, "axusigner-drain-" + i);
+			t.setDaemon(true);
+			drainThreads.add(t);
+		}
+
+		for (Thread t : threads) {
+			t.start();
+		}
+
+		for (Thread t : drainThreads) {
+			t.start();
+		}
+
+		if (progressInterval > 0) {
+			reporterThread = new Thread(this::reportProgress, "axusigner-progress");
+			reporterThread.setDaemon(true);
+			reporterThread.start();
+		}
+	}
+
+	public void submit(Path srcPdfFilePath) throws InterruptedException {
+		if (batchError.get() != null) {
+			return;
+		}
+
+		BasicFileAttributes attrs;
+
+		try {
+			attrs = Files.readAttributes(srcPdfFilePath, BasicFileAttributes.class);
+		} catch (IOException e) {
+			stats.addSubmitted();
+			failed.set(true);
+			stats.addFailed(false);
+			listener.documentFailed(srcPdfFilePath, null, e);
+			return;
+		}
+
+		submit(srcPdfFilePath, attrs);
+	}
+
+	public void submit(Path srcPdfFilePath, BasicFileAttributes attrs) throws InterruptedException {
+		// Attributes already read by caller are reused, so file is not looked up again
+
+		if (batchError.get() != null) {
+			// Batch is stopped, nothing is accepted anymore
+			return;
+		}
+
+		Job job = new Job(srcPdfFilePath, signer.getOutPdfFilePath(inPath, srcPdfFilePath, outPath));
+
+		stats.addSubmitted();
+
+		job.srcSize = attrs.size();
+		job.srcMtime = attrs.lastModifiedTime().toMillis();
+
+		job.stateKey = inPath.relativize(srcPdfFilePath).toString().replace(File.separatorChar, '/');
+
+		if (state != null) {
+			state.markSeen(job.stateKey);
+
+			// Unchanged size and modification time means unchanged file, so it is skipped without reading
+
+			SignState.Entry entry = state.get(job.stateKey);
+
+			if (!signer.getForce() && entry != null && entry.getProfile().equals(signer.getProfileHash()) &&
+				entry.getSize() == job.srcSize && entry.getMtime() == job.srcMtime && Files.exists(job.outPdfFilePath)) {
+				stats.addSkipped();
+				listener.documentSkipped(srcPdfFilePath);
+				return;
+			}
+		}
+
+		readQueue.put(job);
+	}
+
+	public void checkpoint() throws GeneralException {
+		if (stateEnable && state.isDirty()) {
+			// Outputs recorded in state must not be lost by crash
+			outCommitter.flush();
+			state.save();
+		}
+
+		// Long-running pipeline would grow journal without limit. Without persistent state dropped records
+		// only mean that documents committed before crash are signed once more
+
+		journal.compact();
+	}
+
+	public boolean finish(boolean complete) throws InterruptedException, GeneralException {
+		// End markers are passed on by each stage after its last worker has finished
+
+		try {
+			for (int i = 0; i < readers; i++) {
+				readQueue.put(END);
+			}
+
+			for (Thread t : threads) {
+				t.join();
+			}
+		} catch (InterruptedException e) {
+			abort();
+			throw e;
+		}
+
+		// All outputs written behind were awaited by write stage or discarded, so I/O threads are idle
+
+		for (Thread t : drainThreads) {
+			t.interrupt();
+			t.join();
+		}
+
+		if (reporterThread != null) {
+			reporterThread.interrupt();
+			reporterThread.join();
+		}
+
+		if (stats.getSubmittedFiles() > 0) {
+			listener.progressUpdated(stats);
+		}
+
+		// Make renames of last committed files durable before state refers to them
+
+		outCommitter.flush();
+
+		boolean succeeded = !failed.get();
+
+		if (stateEnable) {
+			if (complete && succeeded) {
+				// All source files were submitted, so forget files which are gone
+				state.retainSeen();
+			}
+
+			state.save();
+		}
+
+		// All documents in work are either committed or failed now, so there is nothing left to recover.
+		// Journal is kept only when pipeline was interrupted before this point
+
+		journal.close(true);
+
+		if (batchError.get() instanceof OutputException) {
+			throw new GeneralException("Signing stopped because of output error!", batchError.get());
+		} else if (batchError.get() != null) {
+			throw new GeneralException("Signing stopped because of settings error!", batchError.get());
+		}
+
+		return succeeded;
+	}
+
+	public void abort() {
+		failed.set(true);
+
+		for (Thread t : threads) {
+			t.interrupt();
+		}
+
+		for (Thread t : drainThreads) {
+			t.interrupt();
+		}
+
+		if (reporterThread != null) {
+			reporterThread.interrupt();
+		}
+	}
+
+	public boolean isFailed() {
+		return failed.get();
+	}
+
+	public boolean isStopped() {
+		// Batch is stopped by output or settings error, finish() reports it
+		return batchError.get() != null;
+	}
+
+	private void startStage(String name, int count, BlockingQueue<Job> inQueue, BlockingQueue<Job> outQueue, int outCount, SignStats.StageTimer timer, Stage stage) {
+		AtomicInteger running = new AtomicInteger(count);
+
+		for (int i = 1; i <= count; i++) {
+			Thread t = new Thread(() -> {
+				boolean interrupted = false;
+
+				try {
+					while (true) {
+						Job job = inQueue.take();
+
+						if (job == END) {
+							break;
+						}
+
+						if (batchError.get() != null) {
+							// Batch is stopped, documents still in queues are dropped
+							job.srcBytes = null;
+							job.outBuffer = null;
+							discardOutput(job, batchError.get());
+							continue;
+						}
+
+						boolean passOn;
+
+						long startNanos = System.nanoTime();
+
+						try {
+							passOn = stage.process(job);
+						} catch (InterruptedException e) {
+							throw e;
+						} catch (Throwable e) {
+							// Failure is contained to this document, the rest of batch goes on. Errors like
+							// stack overflow on malformed document are contained too, so worker stays alive
+							Exception ex = e instanceof Exception ? (Exception)e : new GeneralException("Unexpected error processing document!", e);
+							failed.set(true);
+							stats.addFailed(job.outStarted);
+							job.srcBytes = null;
+							job.outBuffer = null;
+							discardOutput(job, ex);
+
+							// Output and journal failures (full or read-only disk) and settings or font failures would fail
+							// every next document too, so they stop the batch, and source is not quarantined as it is not at fault
+
+							if (ex instanceof OutputException || ex instanceof ConfigException) {
+								batchError.compareAndSet(null, (GeneralException)ex);
+								listener.documentFailed(job.srcPdfFilePath, null, ex);
+							} else if (isUnsettled(job)) {
+								listener.documentFailed(job.srcPdfFilePath, null, ex);
+								unsettledHandler.accept(job.srcPdfFilePath);
+							} else {
+								listener.documentFailed(job.srcPdfFilePath, quarantineJob(job, ex), ex);
+							}
+							continue;
+						}
+
+						timer.add(System.nanoTime() - startNanos);
+
+						if (passOn && outQueue != null) {
+							outQueue.put(job);
+						}
+					}
+				} catch (InterruptedException e) {
+					interrupted = true;
+					Thread.currentThread().interrupt();
+				} finally {
+					// Next stage gets end markers even if this worker died, otherwise it would wait forever
+
+					if (running.decrementAndGet() == 0 && outQueue != null && !interrupted) {
+						try {
+							for (int k = 0; k < outCount; k++) {
+								outQueue.put(END);
+							}
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				}
+			}, "axusigner-" + name + "-" + i);
+
+			t.setDaemon(true);
+
+			threads.add(t);
+		}
+	}
+
+	private void reportProgress() {
+		// Progress is reported at most once per interval, and only while something is going on
+
+		long lastDoneFiles = -1;
+
+		try {
+			while (true) {
+				Thread.sleep(progressInterval);
+
+				long doneFiles = stats.getDoneFiles();
+
+				if (doneFiles != lastDoneFiles || stats.getInWorkFiles() > 0) {
+					lastDoneFiles = doneFiles;
+					listener.progressUpdated(stats);
+				}
+			}
+		} catch (InterruptedException e) {
+			// Pipeline is finished
+		}
+	}
+
+	private void drainOutputs() {
+		try {
+			while (true) {
+				drainQueue.take().drain();
+			}
+		} catch (InterruptedException e) {
+			// Pipeline is finished
+		}
+	}
+
+	private void discardOutput(Job job, Exception e) {
+		// Target file of failed document may be half-written
+
+		if (!job.outStarted) {
+			return;
+		}
+
+		if (job.outStream != null) {
+			// I/O thread must be done with target file before it is removed
+
+			try {
+				job.outStream.abort();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+
+			job.outStream = null;
+		}
+
+		try {
+			Files.deleteIfExists(OutputCommitter.getTempPath(job.outPdfFilePath));
+			Files.deleteIfExists(job.outPdfFilePath);
+
+			journal.logDiscard(job.stateKey);
+		} catch (IOException ex) {
+			e.addSuppressed(ex);
+		}
+	}
+
+	private boolean isUnsettled(Job job) {
+		if (unsettledHandler == null) {
+			return false;
+		}
+
+		BasicFileAttributes attrs;
+
+		try {
+			attrs = Files.readAttributes(job.srcPdfFilePath, BasicFileAttributes.class);
+		} catch (IOException e) {
+			// File is gone, there is nothing to wait for
+			return false;
+		}
+
+		long mtime = attrs.lastModifiedTime().toMillis();
+
+		if (attrs.size() != job.srcSize || mtime != job.srcMtime || System.currentTimeMillis() - mtime < settleMs) {
+			return true;
+		}
+
+		return handedBackFiles.add(job.stateKey + ":" + job.srcSize + ":" + job.srcMtime);
+	}
+
+	private Path quarantineJob(Job job, Exception e) {
+		// Move failed source file away with error description next to it, so it is not picked up again
+
+		Path quarantinePath = signer.getQuarantinePath();
+
+		if (quarantinePath == null) {
+			return null;
+		}
+
+		Path quarantineFilePath;
+
+		try {
+			quarantineFilePath = moveToQuarantine(job.srcPdfFilePath, quarantinePath.resolve(job.stateKey));
+
+			String errorText = "Дата: " + LocalDateTime.now().format(DateTimeFormatter.ofPattern("dd.MM.yyyy HH:mm:ss")) + "\n" +
+				"Исходный файл: " + job.srcPdfFilePath.toAbsolutePath() + "\n\n" +
+				MiscUtils.getStackTrace(e);
+
+			Files.write(quarantineFilePath.resolveSibling(quarantineFilePath.getFileName() + ".error.txt"), errorText.getBytes(StandardCharsets.UTF_8));
+		} catch (IOException ex) {
+			e.addSuppressed(ex);
+			return null;
+		}
+
+		return quarantineFilePath;
+	}
+
+	private Path moveToQuarantine(Path srcPdfFilePath, Path quarantineFilePath) throws IOException {
+		// File quarantined earlier under the same name is kept, new one gets numbered name
+
+		Files.createDirectories(quarantineFilePath.getParent());
+
+		String fileName = quarantineFilePath.getFileName().toString();
+		int extPos = fileName.lastIndexOf('.');
+
+		String baseName = extPos > 0 ? fileName.substring(0, extPos) : fileName;
+		String ext = extPos > 0 ? fileName.substring(extPos) : "";
+
+		Path targetPath = quarantineFilePath;
+
+		for (int i = 1; ; i++) {
+			try {
+				Files.move(srcPdfFilePath, targetPath);
+				return targetPath;
+			} catch (FileAlreadyExistsException e) {
+				targetPath = quarantineFilePath.resolveSibling(baseName + "." + i + ext);
+			}
+		}
+	}
+
+	private boolean readJob(Job job) throws Exception {
+		// Documents up to buffer size are read at once here, bigger and memory mapped ones are read by the render stage directly
+
+		if (job.srcSize <= bufferMaxSize && !signer.isInputMapped(job.srcPdfFilePath, job.srcSize)) {
+			job.srcBytes = Files.readAllBytes(job.srcPdfFilePath);
+		}
+
+		if (state == null) {
+			return true;
+		}
+
+		SignState.Entry entry = state.get(job.stateKey);
+
+		boolean canSkip = !signer.getForce() && entry != null && entry.getProfile().equals(signer.getProfileHash());
+
+		// Digest is taken from bytes already in memory. Files read by the render stage directly are digested
+		// only when digest may let them be skipped, so they are not read twice for nothing
+
+		if (job.srcBytes != null) {
+			job.srcDigest = SignState.calcContentDigest(job.srcBytes);
+		} else if (canSkip && !entry.getDigest().equals("-")) {
+			job.srcDigest = SignState.calcContentDigest(job.srcPdfFilePath);
+		}
+
+		// File was touched but its content is the same, so just remember new modification time
+
+		if (canSkip && job.srcDigest != null && entry.getDigest().equals(job.srcDigest) && Files.exists(job.outPdfFilePath)) {
+			state.put(job.stateKey, new SignState.Entry(job.srcDigest, signer.getProfileHash(), job.srcSize, job.srcMtime));
+			stats.addSkipped();
+			listener.documentSkipped(job.srcPdfFilePath);
+			return false;
+		}
+
+		return true;
+	}
+
+	private boolean renderJob(Job job) throws Exception {
+		listener.documentStarted(job.srcPdfFilePath);
+
+		// Target file may be touched from now on
+
+		try {
+			journal.logStart(job.stateKey, outPath.relativize(job.outPdfFilePath).toString().replace(File.separatorChar, '/'));
+		} catch (IOException e) {
+			throw new OutputException("Can't write journal file!", e);
+		}
+
+		job.outStarted = true;
+
+		stats.addStarted();
+
+		if (job.srcBytes != null) {
+			job.outBuffer = outBufferPool.take(job.srcSize);
+			signer.signDocument(job.srcBytes, job.outBuffer, stats);
+			job.srcBytes = null;
+		} else {
+			job.outStream = new WriteBehindOutputStream(OutputCommitter.getTempPath(job.outPdfFilePath), WRITE_BEHIND_CHUNK_SIZE, WRITE_BEHIND_CHUNKS);
+			drainQueue.put(job.outStream);
+			signer.signDocument(job.srcPdfFilePath, job.outStream, stats);
+		}
+
+		return true;
+	}
+
+	private boolean writeJob(Job job) throws Exception {
+		long outSize;
+
+		// Signed file gets its final name only after it is completely written
+
+		Path tmpPath = OutputCommitter.getTempPath(job.outPdfFilePath);
+
+		try {
+			if (job.outBuffer != null) {
+				Files.createDirectories(job.outPdfFilePath.getParent());
+				outCommitter.writeFile(tmpPath, job.outBuffer);
+				outSize = job.outBuffer.size();
+				outBufferPool.release(job.outBuffer);
+				job.outBuffer = null;
+			} else {
+				job.outStream.awaitWritten();
+				outSize = job.outStream.getSize();
+				job.outStream = null;
+				outCommitter.syncFile(tmpPath);
+			}
+
+			outCommitter.commit(tmpPath, job.outPdfFilePath);
+		} catch (IOException e) {
+			throw new OutputException("Can't write target PDF file!", e);
+		}
+
+		SignState.Entry entry = new SignState.Entry(job.srcDigest != null ? job.srcDigest : "-", signer.getProfileHash(), job.srcSize, job.srcMtime);
+
+		try {
+			journal.logCommit(job.stateKey, entry);
+		} catch (IOException e) {
+			throw new OutputException("Can't write journal file!", e);
+		}
+
+		if (state != null) {
+			state.put(job.stateKey, entry);
+		}
+
+		stats.addSigned(job.srcSize, outSize);
+
+		listener.documentSigned(job.srcPdfFilePath, job.outPdfFilePath);
+
+		return true;
+	}
+}
@@ -0,0 +1,205 @@
+package ru.axu.signer;
+
+import org.bouncycastle.crypto.digests.GOST3411_2012_256Digest;
+import org.bouncycastle.util.encoders.Hex;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class SignState {
+	// Persistent state of signed source files, used to skip unchanged files on next runs.
+	// Every line holds digest, profile hash, size, modification time and relative path of one source file
+
+	private static final String HEADER = "AXUSIGNER-STATE 1";
+
+	public static class Entry {
+		private final String digest;
+		private final String profile;
+		private final long size;
+		private final long mtime;
+
+		public Entry(String digest, String profile, long size, long mtime) {
+			this.digest = digest;
+			this.profile = profile;
+			this.size = size;
+			this.mtime = mtime;
+		}
+
+		public String getDigest() {
+			return digest;
+		}
+
+		public String getProfile() {
+			return profile;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getMtime() {
+			return mtime;
+		}
+	}
+
+	private final File stateFile;
+
+	private final Map<String, Entry> entries;
+	private final Set<String> seenKeys;
+
+	private volatile boolean dirty;
+
+	public SignState(File stateFile) {
+		if (stateFile == null) {
+			throw new IllegalArgumentException("Argument value can't be null!");
+		}
+
+		this.stateFile = stateFile;
+
+		entries = new ConcurrentHashMap<>();
+		seenKeys = ConcurrentHashMap.newKeySet();
+
+		dirty = false;
+	}
+
+	public File getStateFile() {
+		return stateFile;
+	}
+
+	public void load() throws GeneralException {
+		entries.clear();
+
+		if (!stateFile.exists()) {
+			return;
+		}
+
+		try (BufferedReader in = Files.newBufferedReader(stateFile.toPath(), StandardCharsets.UTF_8)) {
+			String line = in.readLine();
+
+			if (!HEADER.equals(line)) {
+				// Unknown format, just start from scratch
+				return;
+			}
+
+			while ((line = in.readLine()) != null) {
+				String[] parts = line.split("\t", 5);
+
+				if (parts.length != 5) {
+					continue;
+				}
+
+				entries.put(parts[4], new Entry(parts[0], parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+			}
+		} catch (Exception e) {
+			throw new GeneralException("Can't load state file \"" + stateFile.getAbsolutePath() + "\"!", e);
+		}
+	}
+
+	public void save() throws GeneralException {
+		// Write to temporary file first, so state file is never left half-written
+
+		Path tmpPath = new File(stateFile.getPath() + ".tmp").toPath();
+
+		dirty = false;
+
+		try {
+			try (BufferedWriter out = Files.newBufferedWriter(tmpPath, StandardCharsets.UTF_8)) {
+				out.write(HEADER);
+				out.newLine();
+
+				for (Map.Entry<String, Entry> e : entries.entrySet()) {
+					Entry entry = e.getValue();
+
+					out.write(entry.digest + "\t" + entry.profile + "\t" + entry.size + "\t" + entry.mtime + "\t" + e.getKey());
+					out.newLine();
+				}
+			}
+
+			Files.move(tmpPath, stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new GeneralException("Can't save state file \"" + stateFile.getAbsolutePath() + "\"!", e);
+		}
+	}
+
+	public Entry get(String key) {
+		return entries.get(key);
+	}
+
+	public void put(String key, Entry entry) {
+		entries.put(key, entry);
+		dirty = true;
+	}
+
+	public boolean isDirty() {
+		return dirty;
+	}
+
+	public void markSeen(String key) {
+		seenKeys.add(key);
+	}
+
+	public void retainSeen() {
+		// Forget files which were not found in completed batch
+
+		entries.keySet().retainAll(seenKeys);
+	}
+
+	public static String calcDigest(byte[] data) {
+		GOST3411_2012_256Digest digest = new GOST3411_2012_256Digest();
+
+		digest.update(data, 0, data.length);
+
+		byte[] digestBytes = new byte[digest.getDigestSize()];
+
+		digest.doFinal(digestBytes, 0);
+
+		return Hex.toHexString(digestBytes);
+	}
+
+	public static String calcContentDigest(byte[] data) {
+		// Source file digest only detects changed content, so fast JDK SHA-256 is used
+
+		MessageDigest digest = newContentDigest();
+
+		digest.update(data, 0, data.length);
+
+		return Hex.toHexString(digest.digest());
+	}
+
+	public static String calcContentDigest(Path filePath) throws IOException {
+		MessageDigest digest = newContentDigest();
+
+		byte[] buf = new byte[65536];
+
+		try (InputStream in = Files.newInputStream(filePath)) {
+			int len;
+
+			while ((len = in.read(buf)) > 0) {
+				digest.update(buf, 0, len);
+			}
+		}
+
+		return Hex.toHexString(digest.digest());
+	}
+
+	private static MessageDigest newContentDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform has to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package ru.axu.signer;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class SignStats {
+	// Counters of running batch, updated concurrently by pipeline workers and read by progress reporter
+
+	public static class StageTimer {
+		private final LongAdder count;
+		private final LongAdder nanos;
+
+		public StageTimer() {
+			count = new LongAdder();
+			nanos = new LongAdder();
+		}
+
+		public void add(long elapsedNanos) {
+			count.increment();
+			nanos.add(elapsedNanos);
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public double getAvgMs() {
+			long c = count.sum();
+
+			return c == 0 ? 0 : nanos.sum() / 1e6 / c;
+		}
+	}
+
+	private final long startNanos;
+
+	private volatile long totalFiles;
+
+	private final LongAdder submittedFiles;
+	private final LongAdder startedFiles;
+	private final LongAdder signedFiles;
+	private final LongAdder skippedFiles;
+	private final LongAdder failedFiles;
+	private final LongAdder failedStartedFiles;
+
+	private final LongAdder pages;
+	private final LongAdder bytesIn;
+	private final LongAdder bytesOut;
+
+	private final StageTimer readTimer;
+	private final StageTimer renderTimer;
+	private final StageTimer writeTimer;
+
+	public SignStats() {
+		startNanos = System.nanoTime();
+
+		totalFiles = 0;
+
+		submittedFiles = new LongAdder();
+		startedFiles = new LongAdder();
+		signedFiles = new LongAdder();
+		skippedFiles = new LongAdder();
+		failedFiles = new LongAdder();
+		failedStartedFiles = new LongAdder();
+
+		pages = new LongAdder();
+		bytesIn = new LongAdder();
+		bytesOut = new LongAdder();
+
+		readTimer = new StageTimer();
+		renderTimer = new StageTimer();
+		writeTimer = new StageTimer();
+	}
+
+	public void setTotalFiles(long totalFiles) {
+		// Zero means total is not known (yet), so no ETA can be given
+		this.totalFiles = totalFiles;
+	}
+
+	public long getTotalFiles() {
+		return totalFiles;
+	}
+
+	public void addSubmitted() {
+		submittedFiles.increment();
+	}
+
+	public void addStarted() {
+		startedFiles.increment();
+	}
+
+	public void addSigned(long srcSize, long outSize) {
+		signedFiles.increment();
+		bytesIn.add(srcSize);
+		bytesOut.add(outSize);
+	}
+
+	public void addSkipped() {
+		skippedFiles.increment();
+	}
+
+	public void addFailed(boolean started) {
+		failedFiles.increment();
+
+		if (started) {
+			failedStartedFiles.increment();
+		}
+	}
+
+	public void addPages(int count) {
+		pages.add(count);
+	}
+
+	public long getSubmittedFiles() {
+		return submittedFiles.sum();
+	}
+
+	public long getSignedFiles() {
+		return signedFiles.sum();
+	}
+
+	public long getSkippedFiles() {
+		return skippedFiles.sum();
+	}
+
+	public long getFailedFiles() {
+		return failedFiles.sum();
+	}
+
+	public long getDoneFiles() {
+		return signedFiles.sum() + skippedFiles.sum() + failedFiles.sum();
+	}
+
+	public long getInWorkFiles() {
+		// Documents which are being rendered or written right now
+		return Math.max(0, startedFiles.sum() - signedFiles.sum() - failedStartedFiles.sum());
+	}
+
+	public long getPages() {
+		return pages.sum();
+	}
+
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	public StageTimer getReadTimer() {
+		return readTimer;
+	}
+
+	public StageTimer getRenderTimer() {
+		return renderTimer;
+	}
+
+	public StageTimer getWriteTimer() {
+		return writeTimer;
+	}
+
+	public double getElapsedSec() {
+		return (System.nanoTime() - startNanos) / 1e9;
+	}
+
+	public double getFilesPerSec() {
+		return perSec(signedFiles.sum());
+	}
+
+	public double getPagesPerSec() {
+		return perSec(pages.sum());
+	}
+
+	public double getMbInPerSec() {
+		return perSec(bytesIn.sum()) / (1024 * 1024);
+	}
+
+	public double getMbOutPerSec() {
+		return perSec(bytesOut.sum()) / (1024 * 1024);
+	}
+
+	public long getEtaSec() {
+		// Remaining documents at average rate of processed ones, -1 when it can't be estimated
+
+		long total = totalFiles;
+		long done = getDoneFiles();
+
+		if (total <= 0 || done == 0) {
+			return -1;
+		}
+
+		long remaining = Math.max(0, total - done);
+
+		return Math.round(remaining * getElapsedSec() / done);
+	}
+
+	private double perSec(long value) {
+		double elapsedSec = getElapsedSec();
+
+		return elapsedSec > 0 ? value / elapsedSec : 0;
+	}
+}
@@ -0,0 +1,240 @@
+package ru.axu.signer;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class WatchDaemon {
+	// Long-running mode: key, fonts and signing pipeline stay loaded, and every PDF file
+	// appearing in source directory is signed as soon as it is fully written
+
+	private static final int WARM_UP_ROUNDS = 3;
+
+	private final SdsSigner signer;
+	private final Path inPath;
+	private final Path outPath;
+	private final SdsSignListener listener;
+
+	private final long debounceMs;
+
+	// Source files waiting until their size and modification time stay the same for debounce time
+	private final Map<Path, PendingFile> pendingFiles;
+
+	// Size and modification time of files already passed to pipeline, so they are not signed twice
+	private final Map<Path, String> submittedFiles;
+
+	// Files failed by pipeline while they were still being written, filled by pipeline threads
+	private final Queue<Path> unsettledFiles;
+
+	private volatile boolean running;
+
+	private final CountDownLatch stopped;
+
+	public WatchDaemon(SdsSigner signer, Path inPath, Path outPath, SdsSignListener listener) {
+		if (signer == null || inPath == null || outPath == null || listener == null) {
+			throw new IllegalArgumentException("Argument value can't be null!");
+		}
+
+		this.signer = signer;
+		this.inPath = inPath;
+		this.outPath = outPath;
+		this.listener = listener;
+
+		debounceMs = signer.getConfig().getWatchDebounce();
+
+		pendingFiles = new HashMap<>();
+		submittedFiles = new HashMap<>();
+		unsettledFiles = new ConcurrentLinkedQueue<>();
+
+		running = false;
+
+		stopped = new CountDownLatch(1);
+	}
+
+	public void run() throws GeneralException, InterruptedException {
+		running = true;
+
+		try {
+			signer.warmUp(WARM_UP_ROUNDS);
+
+			SignPipeline pipeline = new SignPipeline(signer, inPath, outPath, listener);
+
+			pipeline.setUnsettledHandler(debounceMs, unsettledFiles::add);
+
+			pipeline.start();
+
+			try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+				registerTree(watchService, inPath);
+
+				// Files which are already there are handled first, unchanged ones are skipped by state
+
+				addExistingFiles(inPath);
+
+				while (running && !pipeline.isStopped()) {
+					WatchKey key = watchService.poll(Math.max(10, debounceMs / 4), TimeUnit.MILLISECONDS);
+
+					while (key != null) {
+						processEvents(watchService, key);
+						key.reset();
+						key = watchService.poll();
+					}
+
+					// Half-written files are checked for stability again and signed once they are complete
+
+					Path unsettledFilePath;
+
+					while ((unsettledFilePath = unsettledFiles.poll()) != null) {
+						submittedFiles.remove(unsettledFilePath);
+						pendingFiles.put(unsettledFilePath, new PendingFile());
+					}
+
+					submitSettledFiles(pipeline);
+
+					pipeline.checkpoint();
+				}
+			} catch (IOException e) {
+				pipeline.abort();
+				throw new GeneralException("Error watching source directory \"" + inPath.toAbsolutePath() + "\"!", e);
+			}
+
+			// Let documents already in pipeline be finished
+
+			pipeline.finish(false);
+		} finally {
+			running = false;
+			stopped.countDown();
+		}
+	}
+
+	public void stop() {
+		running = false;
+	}
+
+	public void awaitStopped() throws InterruptedException {
+		stopped.await();
+	}
+
+	private void registerTree(WatchService watchService, Path dirPath) throws IOException {
+		Files.walkFileTree(dirPath, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private void addExistingFiles(Path dirPath) throws IOException {
+		try {
+			SdsSigner.walkSrcPdfFiles(dirPath, (srcPdfFilePath, attrs) -> {
+				pendingFiles.put(srcPdfFilePath, new PendingFile());
+				return true;
+			});
+		} catch (InterruptedException e) {
+			// Visitor never waits, so walk can't be interrupted
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void processEvents(WatchService watchService, WatchKey key) throws IOException {
+		Path dirPath = (Path)key.watchable();
+
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				// Some events were lost, so rescan whole directory
+				addExistingFiles(inPath);
+				continue;
+			}
+
+			Path path = dirPath.resolve((Path)event.context());
+
+			if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+				pendingFiles.remove(path);
+				submittedFiles.remove(path);
+				continue;
+			}
+
+			if (Files.isDirectory(path)) {
+				if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+					// New or moved in directory may already contain files
+					registerTree(watchService, path);
+					addExistingFiles(path);
+				}
+				continue;
+			}
+
+			if (path.toString().toLowerCase().endsWith(".pdf")) {
+				// Any change starts stability check anew
+				pendingFiles.put(path, new PendingFile());
+			}
+		}
+	}
+
+	private void submitSettledFiles(SignPipeline pipeline) throws InterruptedException {
+		long now = System.currentTimeMillis();
+
+		Iterator<Map.Entry<Path, PendingFile>> it = pendingFiles.entrySet().iterator();
+
+		while (it.hasNext()) {
+			Map.Entry<Path, PendingFile> e = it.next();
+
+			PendingFile pendingFile = e.getValue();
+
+			if (now - pendingFile.checkTime < debounceMs) {
+				continue;
+			}
+
+			Path srcPdfFilePath = e.getKey();
+
+			BasicFileAttributes attrs;
+
+			try {
+				attrs = Files.readAttributes(srcPdfFilePath, BasicFileAttributes.class);
+			} catch (IOException ex) {
+				// File was removed meanwhile
+				it.remove();
+				continue;
+			}
+
+			String fileStamp = attrs.size() + ":" + attrs.lastModifiedTime().toMillis();
+
+			if (!fileStamp.equals(pendingFile.fileStamp)) {
+				// File is new or still being written, so check it once more later
+				pendingFile.fileStamp = fileStamp;
+				pendingFile.checkTime = now;
+				continue;
+			}
+
+			it.remove();
+
+			if (fileStamp.equals(submittedFiles.get(srcPdfFilePath))) {
+				continue;
+			}
+
+			submittedFiles.put(srcPdfFilePath, fileStamp);
+
+			pipeline.submit(srcPdfFilePath, attrs);
+		}
+	}
+
+	private static class PendingFile {
+		// Size and modification time seen by last check, null until file is checked first time
+		String fileStamp = null;
+		long checkTime = 0;
+	}
+}
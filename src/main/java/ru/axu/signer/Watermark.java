@@ -1,20 +1,20 @@
 package ru.axu.signer;
 
-import com.itextpdf.io.font.PdfEncodings;
-import com.itextpdf.kernel.colors.DeviceRgb;
 import com.itextpdf.kernel.font.PdfFont;
-import com.itextpdf.kernel.font.PdfFontFactory;
+import com.itextpdf.kernel.geom.Rectangle;
+import com.itextpdf.kernel.pdf.PdfDocument;
 import com.itextpdf.kernel.pdf.PdfPage;
+import com.itextpdf.kernel.pdf.PdfResources;
 import com.itextpdf.kernel.pdf.canvas.PdfCanvas;
 import com.itextpdf.kernel.pdf.extgstate.PdfExtGState;
+import com.itextpdf.kernel.pdf.xobject.PdfFormXObject;
 import com.itextpdf.layout.Canvas;
 import com.itextpdf.layout.element.Paragraph;
 import com.itextpdf.layout.property.TextAlignment;
 import com.itextpdf.layout.property.VerticalAlignment;
 
 import java.awt.*;
-import java.io.IOException;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
 
 public class Watermark {
@@ -30,7 +30,13 @@ public class Watermark {
 
 	private boolean flip;
 
-	private Map<IntPair, Integer> fontSizeCache;
+	private PageGeometryCache geometryCache;
+
+	// Watermark instance is used for one document only, so forms are cached for that document.
+	// Geometry objects are unique per page size, so they are compared by identity
+	private Map<PageGeometryCache.Geometry, PdfFormXObject> formCache;
+
+	private WatermarkTemplateCache templateCache;
 
 	public Watermark() {
 		text = "*** водный знак *** водный знак *** водный знак ***";
@@ -41,9 +47,9 @@ public class Watermark {
 		offset = 10;
 		flip = false;
 
-		fontSizeCache = new HashMap<>();
-
-		PdfUtils.registerSystemFontsOnce();
+		geometryCache = new PageGeometryCache();
+		formCache = new IdentityHashMap<>();
+		templateCache = null;
 	}
 
 	public void setText(String text) {
@@ -98,72 +104,202 @@ public class Watermark {
 		this.flip = flip;
 	}
 
-	private int recursiveFindFontSize(PdfFont font, String text, int targetLen, int fontMaxSize, int fontMinSize, int targetLenOffs, int angDeg) {
-		int fontCurSize = fontMaxSize;
-		int fontPrevSize = 0;
+	public void setGeometryCache(PageGeometryCache geometryCache) {
+		// Cache may be shared only between watermarks with the same text, font, size and offset settings
 
-		while (true) {
-			int tlCalcOffs = (int)((fontCurSize / 2) * Math.tan(Math.toRadians(90 - angDeg)));
-			if (font.getWidth(text, fontCurSize) > targetLen - Math.max(tlCalcOffs, targetLenOffs) * 2) {
-				fontPrevSize = fontCurSize;
-				fontCurSize -= (fontCurSize - fontMinSize) / 2;
-				if (fontCurSize == fontPrevSize) {
-					return fontCurSize;
-				}
-			} else {
-				if (fontPrevSize - fontCurSize < 1) {
-					return fontCurSize;
-				} else {
-					return recursiveFindFontSize(font, text, targetLen, fontPrevSize, fontCurSize, targetLenOffs, angDeg);
-				}
-			}
+		if (geometryCache == null) {
+			throw new IllegalArgumentException("Argument value can't be null!");
 		}
+
+		this.geometryCache = geometryCache;
+	}
+
+	public void setTemplateCache(WatermarkTemplateCache templateCache) {
+		// Null value disables sharing of watermark content between documents
+		this.templateCache = templateCache;
+	}
+
+	private static boolean isTextTooBig(int textWidth, int fontSize, int targetLen, int targetLenOffs, double offsTan) {
+		int tlCalcOffs = (int)((fontSize / 2) * offsTan);
+		return textWidth * (float)fontSize / 1000 > targetLen - Math.max(tlCalcOffs, targetLenOffs) * 2;
 	}
 
-	public void placeWatermark(PdfPage pdfPage, int pageNumber) throws Exception {
-		PdfFont font = null;
+	private static int findFontSize(PdfFont font, String text, int targetLen, int fontMaxSize, int targetLenOffs, int angDeg) {
+		// Both text width and its offset from page corners grow linearly with font size, so size is
+		// estimated from text width at unit size and then only checked against exact rounding.
+		// Result is the same as of former bisection search: maximum size when text fits, otherwise
+		// the smallest size (but not less than 2) with which text does not fit
 
-		try {
-			font = PdfFontFactory.createRegisteredFont(fontName, PdfEncodings.IDENTITY_H, PdfFontFactory.EmbeddingStrategy.FORCE_EMBEDDED);
-		} catch (IOException e) {
-			throw new Exception("Can't create PDF font with name \"" + fontName + "\"");
+		int textWidth = font.getWidth(text);
+		double offsTan = Math.tan(Math.toRadians(90 - angDeg));
+
+		if (fontMaxSize <= 2 || !isTextTooBig(textWidth, fontMaxSize, targetLen, targetLenOffs, offsTan)) {
+			return fontMaxSize;
 		}
 
+		// Text is too big when it is wider than diagonal without either of offsets
+
+		double sizeByAngle = targetLen / (textWidth / 1000.0 + offsTan);
+		double sizeByOffs = (targetLen - targetLenOffs * 2) / (textWidth / 1000.0);
+
+		double sizeEst = Math.min(sizeByAngle, sizeByOffs);
+
+		int fontSize = Double.isNaN(sizeEst) ? fontMaxSize : (int)Math.max(2, Math.min(fontMaxSize, sizeEst));
+
+		// Size that fits (or 1) and size that does not fit around estimate. Estimate is usually
+		// exact or one off, range is widened by doubling steps only for degenerate page shapes
+
+		int fitSize;
+		int bigSize;
+
+		if (isTextTooBig(textWidth, fontSize, targetLen, targetLenOffs, offsTan)) {
+			bigSize = fontSize;
+			fitSize = fontSize - 1;
+
+			for (int step = 2; fitSize > 1 && isTextTooBig(textWidth, fitSize, targetLen, targetLenOffs, offsTan); step *= 2) {
+				bigSize = fitSize;
+				fitSize = Math.max(1, bigSize - step);
+			}
+		} else {
+			fitSize = fontSize;
+			bigSize = fontSize + 1;
+
+			for (int step = 2; bigSize < fontMaxSize && !isTextTooBig(textWidth, bigSize, targetLen, targetLenOffs, offsTan); step *= 2) {
+				fitSize = bigSize;
+				bigSize = Math.min(fontMaxSize, fitSize + step);
+			}
+		}
+
+		while (bigSize - fitSize > 1) {
+			int midSize = (fitSize + bigSize) / 2;
+
+			if (isTextTooBig(textWidth, midSize, targetLen, targetLenOffs, offsTan)) {
+				bigSize = midSize;
+			} else {
+				fitSize = midSize;
+			}
+		}
+
+		return bigSize;
+	}
+
+	public void placeWatermark(PdfPage pdfPage, int pageNumber, OverlayResources overlayRes) throws Exception {
+		// Watermark is drawn once per distinct page size into a form, and every page of that size
+		// only references the form, so its text and graphics state are not repeated page by page
+
 		float pageHeight = pdfPage.getPageSize().getHeight();
 		float pageWidth = pdfPage.getPageSize().getWidth();
 
-		IntPair pageHW = new IntPair((int)pageHeight, (int)pageWidth);
+		long pageKey = PageGeometryCache.getKey(pageHeight, pageWidth);
+
+		PageGeometryCache.Geometry geometry = geometryCache.get(pageKey);
+
+		if (geometry == null) {
+			geometry = geometryCache.put(pageKey, calcGeometry(overlayRes.getFont(fontName), pageHeight, pageWidth));
+		}
+
+		PdfFormXObject watermarkForm = formCache.get(geometry);
 
+		if (watermarkForm == null) {
+			watermarkForm = createWatermarkForm(overlayRes, geometry, pageHeight, pageWidth);
+			formCache.put(geometry, watermarkForm);
+		}
+
+		PdfCanvas pageCanvas = new PdfCanvas(pdfPage);
+
+		pageCanvas.addXObjectAt(watermarkForm, 0, 0);
+	}
+
+	private PageGeometryCache.Geometry calcGeometry(PdfFont font, float pageHeight, float pageWidth) {
 		float diagLen = (float) Math.sqrt((pageHeight * pageHeight) + (pageWidth * pageWidth));
 		float rotAngle = (float) Math.asin(pageHeight / diagLen);
 
 		int diagLenOffs = (int)(diagLen / 100 * offset);
 
-		float actualFontSize;
+		int fontSize = findFontSize(font, text, (int)diagLen, (int)fontMaxSize, diagLenOffs, (int) Math.toDegrees(rotAngle));
 
-		if (fontSizeCache.containsKey(pageHW)) {
-			actualFontSize = fontSizeCache.get(pageHW);
-		} else {
-			actualFontSize = recursiveFindFontSize(font, text, (int)diagLen, (int)fontMaxSize, 1, diagLenOffs, (int) Math.toDegrees(rotAngle));
-			fontSizeCache.put(pageHW, (int)actualFontSize);
+		return new PageGeometryCache.Geometry(fontSize, rotAngle, pageWidth / 2, pageHeight / 2);
+	}
+
+	private String getTemplateKey(float pageHeight, float pageWidth) {
+		return text + "|" + fontName + "|" + fontMaxSize + "|" + fontColor.getRGB() + "|" + transparency + "|" + offset + "|" + flip + "|" +
+			Float.floatToIntBits(pageHeight) + "|" + Float.floatToIntBits(pageWidth);
+	}
+
+	private PdfFormXObject createWatermarkForm(OverlayResources overlayRes, PageGeometryCache.Geometry geometry, float pageHeight, float pageWidth) throws Exception {
+		PdfDocument pdfDoc = overlayRes.getDocument();
+
+		PdfFont font = overlayRes.getFont(fontName);
+
+		String templateKey = getTemplateKey(pageHeight, pageWidth);
+
+		if (templateCache != null) {
+			WatermarkTemplateCache.Template template = templateCache.get(templateKey);
+
+			if (template != null) {
+				PdfFormXObject watermarkForm = createWatermarkFormFromTemplate(overlayRes, font, template, pageHeight, pageWidth);
+
+				if (watermarkForm != null) {
+					return watermarkForm;
+				}
+			}
 		}
 
-		PdfCanvas pageCanvas = new PdfCanvas(pdfPage);
+		Rectangle formBox = new Rectangle(0, 0, pageWidth, pageHeight);
 
-		pageCanvas.saveState();
+		PdfFormXObject watermarkForm = new PdfFormXObject(formBox);
 
-		pageCanvas.setFillColor(new DeviceRgb(fontColor));
+		PdfCanvas formCanvas = new PdfCanvas(watermarkForm, pdfDoc);
 
-		PdfExtGState gs1 = new PdfExtGState();
-		gs1.setFillOpacity(transparency / 100.0f);
-		pageCanvas.setExtGState(gs1);
+		formCanvas.saveState();
 
-		Paragraph watermarkPar = new Paragraph(text).setFont(font).setFontSize(actualFontSize);
+		formCanvas.setFillColor(overlayRes.getColor(fontColor));
 
-		Canvas watermarkCvs = new Canvas(pageCanvas, pdfPage.getPageSize()).showTextAligned(watermarkPar, pageWidth / 2, pageHeight / 2, pageNumber, TextAlignment.CENTER, VerticalAlignment.MIDDLE, flip ? -1 * rotAngle : rotAngle);
+		PdfExtGState gs1 = overlayRes.getFillOpacityState(transparency / 100.0f);
+		formCanvas.setExtGState(gs1);
+
+		Paragraph watermarkPar = new Paragraph(text).setFont(font).setFontSize(geometry.getFontSize());
+
+		float rotAngle = geometry.getRotAngle();
+
+		Canvas watermarkCvs = new Canvas(formCanvas, formBox).showTextAligned(watermarkPar, geometry.getCenterX(), geometry.getCenterY(), 1, TextAlignment.CENTER, VerticalAlignment.MIDDLE, flip ? -1 * rotAngle : rotAngle);
 
 		watermarkCvs.close();
 
-		pageCanvas.restoreState();
+		formCanvas.restoreState();
+
+		if (templateCache != null) {
+			PdfResources formRes = watermarkForm.getResources();
+
+			templateCache.put(templateKey, new WatermarkTemplateCache.Template(watermarkForm.getPdfObject().getBytes(),
+				formRes.getResourceName(font), formRes.getResourceName(gs1), formRes.getResourceNames()));
+		}
+
+		return watermarkForm;
+	}
+
+	private PdfFormXObject createWatermarkFormFromTemplate(OverlayResources overlayRes, PdfFont font, WatermarkTemplateCache.Template template, float pageHeight, float pageWidth) {
+		PdfDocument pdfDoc = overlayRes.getDocument();
+
+		PdfFormXObject watermarkForm = new PdfFormXObject(new Rectangle(0, 0, pageWidth, pageHeight));
+
+		PdfExtGState gs1 = overlayRes.getFillOpacityState(transparency / 100.0f);
+
+		PdfResources formRes = watermarkForm.getResources();
+
+		// Content is usable only when resources got the same names as in the document it was taken from
+
+		if (!formRes.addFont(pdfDoc, font).equals(template.getFontResName()) || !formRes.addExtGState(gs1).equals(template.getGsResName()) ||
+			!formRes.getResourceNames().equals(template.getResNames())) {
+			return null;
+		}
+
+		// Mark glyphs of text as used, so they get into embedded font subset
+
+		font.convertToBytes(text);
+
+		watermarkForm.getPdfObject().setData(template.getContent());
+
+		return watermarkForm;
 	}
 }
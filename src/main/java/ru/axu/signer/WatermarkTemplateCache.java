@@ -0,0 +1,62 @@
+package ru.axu.signer;
+
+import com.itextpdf.kernel.pdf.PdfName;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class WatermarkTemplateCache {
+	// Finished watermark form content shared by all documents of a batch. Content refers to font and
+	// graphics state only by resource names, so other documents just add their own resources under
+	// the same names and copy content bytes, without laying out the text again
+
+	public static class Template {
+		private final byte[] content;
+		private final PdfName fontResName;
+		private final PdfName gsResName;
+		private final Set<PdfName> resNames;
+
+		public Template(byte[] content, PdfName fontResName, PdfName gsResName, Set<PdfName> resNames) {
+			this.content = content;
+			this.fontResName = fontResName;
+			this.gsResName = gsResName;
+			this.resNames = resNames;
+		}
+
+		public byte[] getContent() {
+			return content;
+		}
+
+		public PdfName getFontResName() {
+			return fontResName;
+		}
+
+		public PdfName getGsResName() {
+			return gsResName;
+		}
+
+		public Set<PdfName> getResNames() {
+			return resNames;
+		}
+	}
+
+	private final Map<String, Template> templates;
+
+	public WatermarkTemplateCache() {
+		templates = new ConcurrentHashMap<>();
+	}
+
+	public Template get(String key) {
+		return templates.get(key);
+	}
+
+	public void put(String key, Template template) {
+		// Documents rendered concurrently may build the same template, the first one is kept
+		templates.putIfAbsent(key, template);
+	}
+
+	public int size() {
+		return templates.size();
+	}
+}
@@ -0,0 +1,241 @@
+package ru.axu.signer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+public class WriteBehindOutputStream extends OutputStream {
+	// Output of big document, written to file by I/O thread while rendering thread goes on producing it.
+	// Rendering thread fills fixed size chunks and passes them through bounded queue, so it waits only
+	// when all chunks are still being written, and memory use does not depend on document size
+
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	private final Path path;
+
+	private final int chunkSize;
+	private final int maxChunks;
+
+	private final BlockingQueue<ByteBuffer> fullChunks;
+	private final BlockingQueue<ByteBuffer> freeChunks;
+
+	private int allocatedChunks;
+
+	private ByteBuffer chunk;
+
+	private long size;
+
+	private boolean closed;
+
+	private volatile boolean aborted;
+
+	private volatile IOException failure;
+
+	private final CountDownLatch written;
+
+	public WriteBehindOutputStream(Path path, int chunkSize, int maxChunks) {
+		if (path == null) {
+			throw new IllegalArgumentException("Argument value can't be null!");
+		}
+
+		if (chunkSize < 1 || maxChunks < 1) {
+			throw new IllegalArgumentException("Argument value can't be less than 1!");
+		}
+
+		this.path = path;
+
+		this.chunkSize = chunkSize;
+		this.maxChunks = maxChunks;
+
+		// End marker is queued in addition to all chunks, so putting to full queue never waits
+
+		fullChunks = new ArrayBlockingQueue<>(maxChunks + 1);
+		freeChunks = new ArrayBlockingQueue<>(maxChunks);
+
+		allocatedChunks = 0;
+
+		chunk = null;
+
+		size = 0;
+
+		closed = false;
+		aborted = false;
+
+		failure = null;
+
+		written = new CountDownLatch(1);
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (chunk == null || !chunk.hasRemaining()) {
+			nextChunk();
+		}
+
+		chunk.put((byte)b);
+
+		size++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (chunk == null || !chunk.hasRemaining()) {
+				nextChunk();
+			}
+
+			int n = Math.min(len, chunk.remaining());
+
+			chunk.put(b, off, n);
+
+			off += n;
+			len -= n;
+
+			size += n;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+
+		try {
+			if (chunk != null && chunk.position() > 0) {
+				chunk.flip();
+				fullChunks.put(chunk);
+			}
+
+			chunk = null;
+
+			fullChunks.put(END);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while closing target file");
+		}
+
+		checkFailure();
+	}
+
+	public void drain() {
+		// Called by I/O thread, returns when stream is closed and all its chunks are written.
+		// After failure chunks are still taken, so rendering thread never waits for nothing
+
+		FileChannel channel = null;
+
+		try {
+			Files.createDirectories(path.getParent());
+			channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		} catch (IOException e) {
+			failure = e;
+		}
+
+		try {
+			while (true) {
+				ByteBuffer bb = fullChunks.take();
+
+				if (bb == END) {
+					break;
+				}
+
+				if (failure == null && !aborted) {
+					try {
+						while (bb.hasRemaining()) {
+							channel.write(bb);
+						}
+					} catch (IOException e) {
+						failure = e;
+					}
+				}
+
+				bb.clear();
+				freeChunks.offer(bb);
+			}
+		} catch (InterruptedException e) {
+			if (failure == null) {
+				failure = new InterruptedIOException("Interrupted while writing target file");
+			}
+		} finally {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					if (failure == null) {
+						failure = e;
+					}
+				}
+			}
+
+			written.countDown();
+		}
+	}
+
+	public void awaitWritten() throws IOException, InterruptedException {
+		written.await();
+
+		checkFailure();
+	}
+
+	public void abort() throws InterruptedException {
+		// Failed document, nothing more is written and file is left for caller to remove
+
+		aborted = true;
+
+		try {
+			close();
+		} catch (IOException e) {
+			// Document is failed anyway
+		}
+
+		written.await();
+	}
+
+	private void nextChunk() throws IOException {
+		checkFailure();
+
+		try {
+			if (chunk != null) {
+				chunk.flip();
+				fullChunks.put(chunk);
+			}
+
+			// New chunks are allocated only until limit is reached, then written ones are reused
+
+			chunk = freeChunks.poll();
+
+			if (chunk == null && allocatedChunks < maxChunks) {
+				allocatedChunks++;
+				chunk = ByteBuffer.allocate(chunkSize);
+			}
+
+			if (chunk == null) {
+				chunk = freeChunks.take();
+			}
+		} catch (InterruptedException e) {
+			chunk = null;
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing target file");
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure != null) {
+			throw new IOException("Can't write file \"" + path + "\"", failure);
+		}
+	}
+}